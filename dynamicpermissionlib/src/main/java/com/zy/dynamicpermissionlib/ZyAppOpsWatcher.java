@@ -0,0 +1,120 @@
+package com.zy.dynamicpermissionlib;
+
+import android.annotation.TargetApi;
+import android.app.AppOpsManager;
+import android.content.Context;
+import android.os.Build;
+import android.os.Process;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps the AppOpsManager modes of the ops checked by {@link ZyPermissions}.
+ * The AppOpsManager service is fetched once, and the first check of an op registers an
+ * OnOpChangedListener for it, so the mode is only read from the system once and then kept
+ * up to date by the change notifications instead of being polled on every check.
+ */
+@TargetApi(Build.VERSION_CODES.M)
+final class ZyAppOpsWatcher {
+
+    private static final String TAG = "ZyAppOpsWatcher";
+
+    /**
+     * Returned by {@link #checkOp(Context, String)} when the mode can not be read.
+     */
+    static final int MODE_UNKNOWN = Integer.MIN_VALUE;
+
+    private final ConcurrentHashMap<String, Integer> mModes = new ConcurrentHashMap<String, Integer>();
+
+    private AppOpsManager mAppOpsManager;
+    private String mPackageName;
+
+    private final AppOpsManager.OnOpChangedListener mOpChangedListener = new AppOpsManager.OnOpChangedListener() {
+        @Override
+        public void onOpChanged(String op, String packageName) {
+            if (op == null || (packageName != null && !packageName.equals(mPackageName))) {
+                return;
+            }
+            AppOpsManager appOpsManager = mAppOpsManager;
+            if (appOpsManager != null) {
+                mModes.put(op, readMode(appOpsManager, op));
+            }
+            ZyPermissions.getInstance().onAppOpChanged(op);
+        }
+    };
+
+    private static class AppOpsWatcherHolder {
+        private static final ZyAppOpsWatcher INSTANCE = new ZyAppOpsWatcher();
+    }
+
+    private ZyAppOpsWatcher() {
+    }
+
+    static ZyAppOpsWatcher getInstance() {
+        return AppOpsWatcherHolder.INSTANCE;
+    }
+
+    /**
+     * @param context any Context of the application
+     * @param op      the op to check, e.g. {@link AppOpsManager#OPSTR_FINE_LOCATION}
+     * @return the mode of the op for the application, or {@link #MODE_UNKNOWN} if it can not be read
+     */
+    int checkOp(@NonNull Context context, @NonNull String op) {
+        Integer mode = mModes.get(op);
+        if (mode != null) {
+            return mode;
+        }
+        AppOpsManager appOpsManager = getAppOpsManager(context);
+        if (appOpsManager == null) {
+            return MODE_UNKNOWN;
+        }
+        synchronized (this) {
+            mode = mModes.get(op);
+            if (mode != null) {
+                return mode;
+            }
+            try {
+                appOpsManager.startWatchingMode(op, mPackageName, mOpChangedListener);
+            } catch (RuntimeException e) {
+                Log.w(TAG, "Could not watch " + op, e);
+                return readMode(appOpsManager, op);
+            }
+            int newMode = readMode(appOpsManager, op);
+            if (newMode != MODE_UNKNOWN) {
+                mModes.put(op, newMode);
+            }
+            return newMode;
+        }
+    }
+
+    @Nullable
+    private synchronized AppOpsManager getAppOpsManager(@NonNull Context context) {
+        if (mAppOpsManager == null) {
+            Context applicationContext = context.getApplicationContext();
+            if (applicationContext == null) {
+                applicationContext = context;
+            }
+            mAppOpsManager = applicationContext.getSystemService(AppOpsManager.class);
+            mPackageName = applicationContext.getPackageName();
+            if (mAppOpsManager == null) {
+                Log.w(TAG, "AppOpsManager is not available");
+            }
+        }
+        return mAppOpsManager;
+    }
+
+    private int readMode(@NonNull AppOpsManager appOpsManager, @NonNull String op) {
+        try {
+            int mode = appOpsManager.checkOp(op, Process.myUid(), mPackageName);
+            Log.d(TAG, op + " mode = " + mode);
+            return mode;
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Could not check " + op, e);
+            return MODE_UNKNOWN;
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package com.zy.dynamicpermissionlib;
+
+import android.app.Activity;
+
+import androidx.annotation.NonNull;
+
+import com.zy.dynamicpermissionlib.core.ZyPermissionBits;
+import com.zy.dynamicpermissionlib.core.ZyPermissionChecker;
+import com.zy.dynamicpermissionlib.core.ZyResultSink;
+
+import java.lang.ref.WeakReference;
+
+/**
+ * Collects the state of every permission of an async request and completes its
+ * {@link ZyPermissionFuture} on the thread reporting the last result, without any Looper hop.
+ */
+final class ZyAsyncResultSink implements ZyResultSink {
+
+    //weak: the sink waits in the session of the activity, it must not keep the activity alive
+    private final WeakReference<Activity> mActivity;
+    private final String[] mPermissions;
+    private final int[] mStates;
+    private final ZyPermissionBits mWaiting = ZyPermissionIds.newBits();
+    private final ZyPermissionFuture mFuture;
+
+    ZyAsyncResultSink(@NonNull Activity activity, @NonNull String[] permissions, @NonNull ZyPermissionFuture future) {
+        mActivity = new WeakReference<Activity>(activity);
+        mPermissions = permissions;
+        mStates = new int[permissions.length];
+        mFuture = future;
+    }
+
+    @Override
+    public synchronized void registerPermissions(String[] permissions) {
+        for (String perm : permissions) {
+            mWaiting.set(ZyPermissionIds.idOf(perm));
+        }
+    }
+
+    @Override
+    public synchronized boolean isWaitingFor(String permission) {
+        return mWaiting.get(ZyPermissionIds.idOf(permission));
+    }
+
+    @Override
+    public synchronized boolean isWaiting() {
+        return !mWaiting.isEmpty();
+    }
+
+    @Override
+    public void onRequestPermissionsResult(int requestCode, String[] permissions, int[] grantResults) {
+    }
+
+    @Override
+    public void onResult(String permission, int state) {
+        if (!isWaitingFor(permission)) {
+            return;
+        }
+        int resultState;
+        if (state == ZyPermissionChecker.STATE_GRANTED) {
+            resultState = ZyPermissionResult.STATE_GRANTED;
+        } else if (state == ZyPermissionChecker.STATE_NOT_FOUND) {
+            resultState = ZyPermissionResult.STATE_NOT_FOUND;
+        } else if (state == ZyPermissionChecker.STATE_FORBIDDEN) {
+            resultState = ZyPermissionResult.STATE_FORBIDDEN;
+        } else if (state == ZyPermissionChecker.STATE_TIMEOUT) {
+            resultState = ZyPermissionResult.STATE_TIMEOUT;
+        } else if (state == ZyPermissionChecker.STATE_UNDECLARED) {
+            resultState = ZyPermissionResult.STATE_UNDECLARED;
+        } else if (state == ZyPermissionChecker.STATE_CANCELED) {
+            resultState = ZyPermissionResult.STATE_DENIED;
+        } else if (isForbidden(permission)) {
+            resultState = ZyPermissionResult.STATE_FORBIDDEN;
+        } else {
+            resultState = ZyPermissionResult.STATE_DENIED;
+        }
+        synchronized (this) {
+            if (!mWaiting.clear(ZyPermissionIds.idOf(permission))) {
+                return;
+            }
+            for (int n = 0; n < mPermissions.length; n++) {
+                if (mPermissions[n].equals(permission)) {
+                    mStates[n] = resultState;
+                }
+            }
+            if (!mWaiting.isEmpty()) {
+                return;
+            }
+        }
+        mFuture.complete(new ZyPermissionResult(mPermissions, mStates));
+    }
+
+    private boolean isForbidden(@NonNull String permission) {
+        Activity activity = mActivity.get();
+        return activity != null && ZyPermissions.getInstance().CheckIsForbiddenReq(activity, permission);
+    }
+}
@@ -0,0 +1,120 @@
+package com.zy.dynamicpermissionlib;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Delivers onGranted, onDenied, onTimeout and onUndeclared to the Looper of a {@link ZyPermissionsResultAction}.
+ * When the caller already runs on that Looper the callback is invoked directly, otherwise it is
+ * posted with the single Handler kept for that Looper, using a dispatch record taken from a
+ * small pool, so delivering a result neither allocates a Handler nor a Runnable.
+ */
+final class ZyCallbackDispatcher {
+
+    static final int CALLBACK_GRANTED = 0;
+    static final int CALLBACK_DENIED = 1;
+    static final int CALLBACK_TIMEOUT = 2;
+    static final int CALLBACK_UNDECLARED = 3;
+
+    private static final int MAX_POOL_SIZE = 16;
+
+    private static final Map<Looper, Handler> sHandlers = new HashMap<Looper, Handler>(2);
+
+    private static final Object sPoolLock = new Object();
+    private static DispatchRecord sPool = null;
+    private static int sPoolSize = 0;
+
+    private ZyCallbackDispatcher() {
+    }
+
+    /**
+     * @param looper     the Looper the callback must run on
+     * @param action     the action to call back
+     * @param callback   one of the CALLBACK_ constants
+     * @param permission the permission denied, timed out or undeclared, null for {@link #CALLBACK_GRANTED}
+     */
+    static void dispatch(@NonNull Looper looper, @NonNull ZyPermissionsResultAction action,
+                         int callback, @Nullable String permission) {
+        if (Looper.myLooper() == looper) {
+            invoke(action, callback, permission);
+            return;
+        }
+        DispatchRecord record = obtain();
+        record.action = action;
+        record.callback = callback;
+        record.permission = permission;
+        getHandler(looper).post(record);
+    }
+
+    private static void invoke(@NonNull ZyPermissionsResultAction action, int callback, @Nullable String permission) {
+        if (callback == CALLBACK_GRANTED) {
+            action.onGranted();
+        } else if (callback == CALLBACK_TIMEOUT) {
+            action.onTimeout(permission);
+        } else if (callback == CALLBACK_UNDECLARED) {
+            action.onUndeclared(permission);
+        } else {
+            action.onDenied(permission);
+        }
+    }
+
+    @NonNull
+    private static Handler getHandler(@NonNull Looper looper) {
+        synchronized (sHandlers) {
+            Handler handler = sHandlers.get(looper);
+            if (handler == null) {
+                handler = new Handler(looper);
+                sHandlers.put(looper, handler);
+            }
+            return handler;
+        }
+    }
+
+    @NonNull
+    private static DispatchRecord obtain() {
+        synchronized (sPoolLock) {
+            DispatchRecord record = sPool;
+            if (record != null) {
+                sPool = record.next;
+                record.next = null;
+                sPoolSize--;
+                return record;
+            }
+        }
+        return new DispatchRecord();
+    }
+
+    private static void recycle(@NonNull DispatchRecord record) {
+        record.action = null;
+        record.permission = null;
+        synchronized (sPoolLock) {
+            if (sPoolSize < MAX_POOL_SIZE) {
+                record.next = sPool;
+                sPool = record;
+                sPoolSize++;
+            }
+        }
+    }
+
+    private static final class DispatchRecord implements Runnable {
+        ZyPermissionsResultAction action;
+        int callback;
+        String permission;
+        DispatchRecord next;
+
+        @Override
+        public void run() {
+            ZyPermissionsResultAction action = this.action;
+            int callback = this.callback;
+            String permission = this.permission;
+            recycle(this);
+            invoke(action, callback, permission);
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package com.zy.dynamicpermissionlib;
+
+import android.Manifest;
+import android.annotation.TargetApi;
+import android.app.AppOpsManager;
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.os.Build;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The check strategies of this device, indexed by permission id. The rules are matched once per
+ * process against Build.MANUFACTURER and the SDK level, a check then finds the strategy of its
+ * permission with a single array read, and the permissions without strategy are answered by
+ * ActivityCompat alone. The rules of a manufacturer are resolved on top of the rules for every
+ * device, and among the matching rules of the same kind naming a permission, the last registered wins.
+ */
+final class ZyCheckStrategies {
+
+    private final List<Rule> mRules = new ArrayList<Rule>();
+    private volatile ZyPermissionCheckStrategy[] mTable = null;
+
+    ZyCheckStrategies() {
+        //XiaoMi's permission manager, among others, keeps the grants of the phone and location groups
+        //in AppOps, the ops are trusted on every device where the platform has them
+        addRule(null, Build.VERSION_CODES.M,
+                new String[]{Manifest.permission.READ_PHONE_STATE},
+                new AppOpsStrategy(AppOpsManager.OPSTR_READ_PHONE_STATE));
+        addRule(null, Build.VERSION_CODES.M,
+                new String[]{Manifest.permission.ACCESS_FINE_LOCATION, Manifest.permission.ACCESS_COARSE_LOCATION},
+                new AppOpsStrategy(AppOpsManager.OPSTR_FINE_LOCATION));
+    }
+
+    /**
+     * @param manufacturer the Build.MANUFACTURER of the devices, case insensitive, or null for every device
+     * @param minSdk       the lowest SDK level the rule applies to
+     * @param permissions  the permissions checked with the strategy
+     * @param strategy     the strategy
+     */
+    synchronized void addRule(@Nullable String manufacturer, int minSdk,
+                              @NonNull String[] permissions, @NonNull ZyPermissionCheckStrategy strategy) {
+        mRules.add(new Rule(manufacturer, minSdk, permissions, strategy));
+        mTable = null;
+    }
+
+    /**
+     * @param id the interned id of the permission
+     * @return the strategy of the permission on this device, or null to trust the platform
+     */
+    @Nullable
+    ZyPermissionCheckStrategy get(int id) {
+        ZyPermissionCheckStrategy[] table = mTable;
+        if (table == null) {
+            table = resolve();
+        }
+        return id < table.length ? table[id] : null;
+    }
+
+    /**
+     * Drop the cached grant states of the permissions checked through the op on this device.
+     *
+     * @param op    the op whose mode changed
+     * @param cache the grant-state cache
+     */
+    void onAppOpChanged(@NonNull String op, @NonNull ZyPermissionStateCache cache) {
+        ZyPermissionCheckStrategy[] table = mTable;
+        if (table == null) {
+            return;
+        }
+        for (int id = 0; id < table.length; id++) {
+            if (table[id] instanceof AppOpsStrategy && ((AppOpsStrategy) table[id]).op.equals(op)) {
+                cache.remove(id);
+            }
+        }
+    }
+
+    @NonNull
+    synchronized ZyPermissionCheckStrategy[] resolve() {
+        ZyPermissionCheckStrategy[] table = mTable;
+        if (table != null) {
+            return table;
+        }
+        //the ids of the rules were interned when they were added, the table covers all of them
+        table = new ZyPermissionCheckStrategy[ZyPermissionIds.INDEX.count()];
+        apply(table, false);
+        apply(table, true);
+        mTable = table;
+        return table;
+    }
+
+    private void apply(@NonNull ZyPermissionCheckStrategy[] table, boolean manufacturerRules) {
+        for (Rule rule : mRules) {
+            if ((rule.manufacturer != null) != manufacturerRules
+                    || !rule.matches(Build.MANUFACTURER, Build.VERSION.SDK_INT)) {
+                continue;
+            }
+            for (int id : rule.ids) {
+                table[id] = rule.strategy;
+            }
+        }
+    }
+
+    private static final class Rule {
+        final String manufacturer;
+        final int minSdk;
+        final int[] ids;
+        final ZyPermissionCheckStrategy strategy;
+
+        Rule(@Nullable String manufacturer, int minSdk, @NonNull String[] permissions,
+             @NonNull ZyPermissionCheckStrategy strategy) {
+            this.manufacturer = manufacturer;
+            this.minSdk = minSdk;
+            this.strategy = strategy;
+            ids = new int[permissions.length];
+            for (int n = 0; n < permissions.length; n++) {
+                ids[n] = ZyPermissionIds.idOf(permissions[n]);
+            }
+        }
+
+        boolean matches(String deviceManufacturer, int sdk) {
+            return sdk >= minSdk && (manufacturer == null || manufacturer.equalsIgnoreCase(deviceManufacturer));
+        }
+    }
+
+    /**
+     * Trusts the mode of an op over a grant reported by the platform, the mode is kept up to date
+     * by {@link ZyAppOpsWatcher}.
+     */
+    @TargetApi(Build.VERSION_CODES.M)
+    static final class AppOpsStrategy implements ZyPermissionCheckStrategy {
+        final String op;
+
+        AppOpsStrategy(@NonNull String op) {
+            this.op = op;
+        }
+
+        @Override
+        public int checkPermission(@NonNull Context context, @NonNull String permission, int platformState) {
+            if (platformState != PackageManager.PERMISSION_GRANTED) {
+                return platformState;
+            }
+            int mode = ZyAppOpsWatcher.getInstance().checkOp(context, op);
+            if (mode == ZyAppOpsWatcher.MODE_UNKNOWN) {
+                return platformState;
+            }
+            return mode == AppOpsManager.MODE_ALLOWED
+                    ? PackageManager.PERMISSION_GRANTED : PackageManager.PERMISSION_DENIED;
+        }
+    }
+}
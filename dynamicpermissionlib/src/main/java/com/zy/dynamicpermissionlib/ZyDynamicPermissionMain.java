@@ -2,68 +2,167 @@ package com.zy.dynamicpermissionlib;
 import android.app.Activity;
 import android.widget.Toast;
 
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class ZyDynamicPermissionMain {
     /**
-     * unity项目启动时的的上下文
+     * unity项目启动时的的上下文，弱引用持有，不阻止Activity被回收
      */
-    private Activity _unityActivity;
+    private WeakReference<Activity> _unityActivity = new WeakReference<Activity>(null);
+    /**
+     * Unity的权限变化通知是否已经注册，只注册一次
+     */
+    private static final AtomicBoolean sUnityChangeListenerAdded = new AtomicBoolean(false);
     /**
      * 获取unity项目的上下文
      * @return
      */
     Activity getActivity(){
-        if(null == _unityActivity) {
-            try {
-                Class<?> classtype = Class.forName("com.unity3d.player.UnityPlayer");
-                Activity activity = (Activity) classtype.getDeclaredField("currentActivity").get(classtype);
-                _unityActivity = activity;
-            } catch (ClassNotFoundException e) {
-
-            } catch (IllegalAccessException e) {
-
-            } catch (NoSuchFieldException e) {
-
-            }
+        Activity activity = _unityActivity.get();
+        if(null == activity) {
+            activity = ZyUnityBridge.getInstance().getCurrentActivity();
+            _unityActivity = new WeakReference<Activity>(activity);
         }
-        return _unityActivity;
+        return activity;
     }
 
     /**
-     * 调用Unity的方法
+     * 调用Unity的方法，消息先进入队列，在主线程的下一次循环中统一发送
      * @param gameObjectName    调用的GameObject的名称
      * @param functionName      方法名
      * @param args              参数
-     * @return                  调用是否成功
+     * @return                  消息是否已进入发送队列，UnityPlayer不可用时返回false
      */
     public static boolean callUnity(String gameObjectName, String functionName, String args){
-        try {
-            Class<?> classtype = Class.forName("com.unity3d.player.UnityPlayer");
-            Method method =classtype.getMethod("UnitySendMessage", String.class,String.class,String.class);
-            method.invoke(classtype,gameObjectName,functionName,args);
-            return true;
-        } catch (ClassNotFoundException e) {
+        return ZyUnityBridge.getInstance().sendMessage(gameObjectName, functionName, args);
+    }
 
-        } catch (NoSuchMethodException e) {
+    /**
+     * 设置接收合并消息的Unity方法，设置后同一帧内发往同一GameObject的消息合并为一次UnitySendMessage，
+     * 每行一条消息，格式为"方法名\t参数"，两个字段中的反斜杠、制表符和换行符分别转义为\\、\t和\n两个字符；
+     * 传null则在调用线程上逐条立即发送（默认）
+     * @param functionName      接收合并消息的方法名
+     */
+    public static void setUnityBatchFunction(String functionName){
+        ZyUnityBridge.getInstance().setBatchFunction(functionName);
+    }
 
-        } catch (IllegalAccessException e) {
+    /**
+     * 设置权限请求等待结果的最长时间，超时的请求被清除，单个请求按拒绝回调，批量请求的状态为timeout
+     * @param ttlMillis         最长等待时间，单位毫秒，0表示一直等待
+     */
+    public static void SetRequestTimeToLive(long ttlMillis){
+        ZyPermissions.getInstance().setRequestTimeToLive(ttlMillis);
+    }
 
-        } catch (InvocationTargetException e) {
+    /**
+     * 获取权限请求流程的耗时与计数快照，便于定位慢设备和厂商差异
+     * @return                  文本格式的统计数据
+     */
+    public static String DumpPermissionMetrics(){
+        return ZyPermissions.getInstance().getMetrics().dump();
+    }
 
+    /**
+     * 在后台线程预热权限库和Unity桥接，并预取权限状态，使游戏内第一次请求更快，供Unity启动时调用
+     * @param permissionNames   需要预取状态的权限列表，格式同UnityReqPermissions；为空时预取清单中声明的所有权限
+     */
+    public void UnityWarmUp(String permissionNames)
+    {
+        Activity activity = getActivity();
+        if (activity == null) {
+            return;
         }
-        return false;
+        String[] permissions = parsePermissionNames(permissionNames);
+        ZyPermissions.getInstance().warmUp(activity, permissions.length > 0 ? permissions : null);
     }
 
+    /**
+     * 注册一组需要批量查询状态的权限，供Unity调用
+     * @param permissionNames   权限列表，格式同UnityReqPermissions
+     * @return                  权限组的id，传给GetPermissionStates；拿不到Activity时返回-1
+     */
+    public int RegisterPermissionSet(String permissionNames)
+    {
+        Activity activity = getActivity();
+        if (activity == null) {
+            return -1;
+        }
+        return ZyPermissions.getInstance().registerPermissionSet(activity, parsePermissionNames(permissionNames));
+    }
+
+    /**
+     * 批量查询权限组中每个权限的状态，不分配内存，可以每帧调用；
+     * 状态码：0 granted，1 denied，2 forbidden，3 not_found
+     * @param setId             RegisterPermissionSet返回的id
+     * @param states            接收状态的数组，顺序与注册时相同
+     * @return                  写入的状态个数，权限组不存在时返回-1
+     */
+    public static int GetPermissionStates(int setId, int[] states)
+    {
+        return ZyPermissions.getInstance().getPermissionStates(setId, states);
+    }
+
+    /**
+     * 同GetPermissionStates，每个状态写为一个字节，从下标0开始，可以传入与native代码共享的direct ByteBuffer
+     * @param setId             RegisterPermissionSet返回的id
+     * @param states            接收状态的缓冲区
+     * @return                  写入的状态个数，权限组不存在时返回-1
+     */
+    public static int GetPermissionStates(int setId, ByteBuffer states)
+    {
+        return ZyPermissions.getInstance().getPermissionStates(setId, states);
+    }
+
+    /**
+     * 开启权限变化通知，供Unity调用：玩家在系统设置中修改了权限后回到游戏时，
+     * 所有变化合并为一次GameMgr.OnPermissionsChangedCallback，参数格式同OnReqPermissionsCallback
+     */
+    public void EnablePermissionChangeEvents()
+    {
+        Activity activity = getActivity();
+        if (activity == null || !sUnityChangeListenerAdded.compareAndSet(false, true)) {
+            return;
+        }
+        ZyPermissions.getInstance().addOnPermissionsChangedListener(activity, new ZyPermissions.OnPermissionsChangedListener() {
+            @Override
+            public void onPermissionsChanged(ZyPermissionResult changes) {
+                callUnity("GameMgr", "OnPermissionsChangedCallback", changes.toString());
+            }
+        });
+    }
+
+    /**
+     * 请求单个权限，供Unity调用；只把请求放入无锁队列后立即返回，请求在主线程的下一次循环中统一发起
+     * @param permissionName    权限名
+     */
     public void UnityReqPermission(String permissionName)
     {
-        ReqPermission(getActivity(), permissionName);
+        ZyUnityIngress.getInstance().enqueue(this, permissionName, false);
     }
 
+    /**
+     * 请求单个权限，结果回调GameMgr的OnReqPermissionGrantedCallback、OnReqPermissionDeniedCallback、
+     * OnReqPermissionForbiddenCallback（拒绝并不可再请求），或OnReqPermissionUndeclaredCallback（清单中未声明，
+     * 系统不会弹窗），参数为权限名
+     * @param activity          发起请求的Activity
+     * @param permissionName    权限名
+     */
     public void ReqPermission(final Activity activity, final String permissionName)
     {
         ZyPermissions.getInstance().requestPermissions(activity, new String[]{permissionName}, new ZyPermissionsResultAction() {
+            //false when the permission was denied without the user being asked, it can not be forbidden then
+            private boolean mAnswered = true;
+
+            @Override
+            void onPermissionResult(String permission, ZyPermissionsEnum result, boolean answered) {
+                mAnswered = answered;
+            }
+
             @Override
             public void onGranted() {
                 Toast.makeText(activity, "同意" + permissionName, Toast.LENGTH_SHORT).show();
@@ -72,7 +171,7 @@ public class ZyDynamicPermissionMain {
 
             @Override
             public void onDenied(String permission) {
-                if (ZyPermissions.getInstance().CheckIsForbiddenReq(activity, permissionName))
+                if (mAnswered && ZyPermissions.getInstance().CheckIsForbiddenReq(activity, permissionName))
                 {
                     Toast.makeText(activity, "拒绝并不可再请求"+ permission, Toast.LENGTH_SHORT).show();
                     callUnity("GameMgr", "OnReqPermissionForbiddenCallback", permission);
@@ -84,6 +183,61 @@ public class ZyDynamicPermissionMain {
                 }
 
             }
+
+            @Override
+            public void onUndeclared(String permission) {
+                Toast.makeText(activity, "未在清单中声明"+ permission, Toast.LENGTH_SHORT).show();
+                callUnity("GameMgr", "OnReqPermissionUndeclaredCallback", permission);
+            }
+        });
+    }
+
+    /**
+     * 一次请求多个权限，供Unity调用；只把请求放入无锁队列后立即返回，请求在主线程的下一次循环中统一发起
+     * @param permissionNames   权限列表，以逗号、分号、竖线或空白分隔，也可以是JSON字符串数组
+     */
+    public void UnityReqPermissions(String permissionNames)
+    {
+        ZyUnityIngress.getInstance().enqueue(this, permissionNames, true);
+    }
+
+    /**
+     * 一次请求多个权限，所有权限都有结果后只回调一次GameMgr.OnReqPermissionsCallback，
+     * 参数格式为"权限:状态;权限:状态"，状态为granted、denied、forbidden、not_found、timeout或undeclared（清单中未声明）
+     * @param activity          发起请求的Activity
+     * @param permissionNames   权限列表，以逗号、分号、竖线或空白分隔，也可以是JSON字符串数组
+     */
+    public void ReqPermissions(final Activity activity, final String permissionNames)
+    {
+        String[] permissions = parsePermissionNames(permissionNames);
+        if (activity == null || permissions.length == 0) {
+            callUnity("GameMgr", "OnReqPermissionsCallback", "");
+            return;
+        }
+        ZyPermissions.getInstance().requestPermissions(activity, permissions, new ZyPermissionsBatchResultAction(activity, permissions) {
+            @Override
+            void onBatchResult(String payload) {
+                callUnity("GameMgr", "OnReqPermissionsCallback", payload);
+            }
         });
     }
+
+    /**
+     * 解析权限列表，去掉JSON数组的括号和引号，并去除重复的权限
+     * @param permissionNames   权限列表
+     * @return                  不重复的权限数组
+     */
+    static String[] parsePermissionNames(String permissionNames)
+    {
+        if (permissionNames == null) {
+            return new String[0];
+        }
+        Set<String> permissions = new LinkedHashSet<String>();
+        for (String name : permissionNames.split("[\\s,;|\\[\\]\"]+")) {
+            if (name.length() > 0) {
+                permissions.add(name);
+            }
+        }
+        return permissions.toArray(new String[permissions.size()]);
+    }
 }
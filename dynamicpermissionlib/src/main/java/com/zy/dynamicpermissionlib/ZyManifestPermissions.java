@@ -0,0 +1,89 @@
+package com.zy.dynamicpermissionlib;
+
+import android.content.Context;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageManager;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.zy.dynamicpermissionlib.core.ZyPermissionBits;
+
+/**
+ * The permissions requested in the merged manifest of the application, read once per process from
+ * PackageInfo.requestedPermissions and indexed by permission id. The system denies a permission the
+ * manifest does not declare without showing any dialog, so such a request is answered right away
+ * instead of paying for a round trip through the system.
+ */
+final class ZyManifestPermissions {
+
+    private static final String TAG = "ZyManifestPermissions";
+
+    private final ZyPermissionBits mDeclared = ZyPermissionIds.newBits();
+    private final ZyPermissionBits mWarned = ZyPermissionIds.newBits();
+
+    private volatile boolean mLoaded = false;
+    private String[] mRequestedPermissions = null;
+    private boolean mDebuggable = false;
+
+    /**
+     * Read the manifest, only the first call does the work.
+     *
+     * @param context any Context of the host application
+     * @return the permissions requested in the manifest, or null if they could not be read
+     */
+    @Nullable
+    synchronized String[] load(@NonNull Context context) {
+        if (mLoaded) {
+            return mRequestedPermissions;
+        }
+        try {
+            mRequestedPermissions = context.getPackageManager()
+                    .getPackageInfo(context.getPackageName(), PackageManager.GET_PERMISSIONS).requestedPermissions;
+        } catch (PackageManager.NameNotFoundException e) {
+            Log.w(TAG, "Could not read the permissions requested in the manifest", e);
+        }
+        if (mRequestedPermissions != null) {
+            for (String perm : mRequestedPermissions) {
+                mDeclared.set(ZyPermissionIds.idOf(perm));
+            }
+        }
+        ApplicationInfo applicationInfo = context.getApplicationInfo();
+        mDebuggable = applicationInfo != null && (applicationInfo.flags & ApplicationInfo.FLAG_DEBUGGABLE) != 0;
+        mLoaded = true;
+        return mRequestedPermissions;
+    }
+
+    /**
+     * A permission is considered declared when the manifest could not be read, so a failure never
+     * denies a permission the application may hold.
+     *
+     * @param context    any Context of the host application, or null if none is known yet
+     * @param permission the permission to look up
+     * @return false if the manifest of the application does not request the permission
+     */
+    boolean isDeclared(@Nullable Context context, @NonNull String permission) {
+        if (!mLoaded) {
+            if (context == null) {
+                return true;
+            }
+            load(context);
+        }
+        synchronized (this) {
+            if (mRequestedPermissions == null) {
+                return true;
+            }
+            int id = ZyPermissionIds.idOf(permission);
+            if (mDeclared.get(id)) {
+                return true;
+            }
+            if (mDebuggable && !mWarned.get(id)) {
+                mWarned.set(id);
+                Log.w(TAG, permission + " is not declared in the AndroidManifest.xml of the application,"
+                        + " it is denied without showing the permission dialog");
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package com.zy.dynamicpermissionlib;
+
+import android.content.Context;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Refines the grant state the platform reports for a permission on the devices whose permission
+ * manager keeps its own state, e.g. in AppOps. Register one with
+ * {@link ZyPermissions#registerCheckStrategy(String, int, String[], ZyPermissionCheckStrategy)}.
+ */
+public interface ZyPermissionCheckStrategy {
+
+    /**
+     * Called on the thread checking the permission, the result is kept in the grant-state cache.
+     *
+     * @param context       any Context of the application
+     * @param permission    the permission to check
+     * @param platformState the result of ActivityCompat.checkSelfPermission for the permission
+     * @return {@link android.content.pm.PackageManager#PERMISSION_GRANTED} or
+     * {@link android.content.pm.PackageManager#PERMISSION_DENIED}
+     */
+    int checkPermission(@NonNull Context context, @NonNull String permission, int platformState);
+}
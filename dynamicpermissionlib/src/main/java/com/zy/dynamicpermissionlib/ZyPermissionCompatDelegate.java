@@ -1,7 +1,9 @@
 package com.zy.dynamicpermissionlib;
 
 import android.app.Activity;
+import android.content.Context;
 import android.content.Intent;
+import android.util.Log;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
@@ -25,29 +27,98 @@ import java.lang.reflect.Method;
  * limitations under the License.
  */
 public class ZyPermissionCompatDelegate implements ActivityCompat.PermissionCompatDelegate {
+
+    private static final String TAG = "ZyPermissionCompatDelegate";
+
+    private static final int BACKEND_UNKNOWN = 0;
+    private static final int BACKEND_INTENT = 1;
+    private static final int BACKEND_UNAVAILABLE = 2;
+
+    /**
+     * Which request backend works in this process, probed by the first request:
+     * {@link #BACKEND_INTENT} when the hidden buildRequestPermissionsIntent API can be called,
+     * {@link #BACKEND_UNAVAILABLE} when it can not and the requests must go through the fragment.
+     */
+    private static volatile int sBackend = BACKEND_UNKNOWN;
+    private static Method sBuildRequestPermissionsIntent;
+
     @Override
     public boolean requestPermissions(@NonNull Activity activity, @NonNull String[] permissions, int requestCode) {
+        if (!ZyPermissionConstant.isLibraryRequestCode(requestCode)) {
+            //not one of our requests, let ActivityCompat handle it
+            return false;
+        }
+        if (sBackend == BACKEND_UNAVAILABLE) {
+            return false;
+        }
+        Method method = getBuildRequestPermissionsIntent(activity);
+        if (method == null) {
+            return false;
+        }
         try {
-            Method method = activity.getPackageManager().getClass().getMethod("buildRequestPermissionsIntent", String[].class);
             Intent intent = (Intent) method.invoke(activity.getPackageManager(), (Object) permissions);
             if (intent != null) {
                 activity.startActivityForResult(intent, requestCode);
+                sBackend = BACKEND_INTENT;
                 return true;
             }
+            markUnavailable(null);
         } catch (Exception e) {
-            e.printStackTrace();
+            markUnavailable(e);
         }
         return false;
     }
 
+    /**
+     * @return true if the requests are known to go through the fragment in this process
+     */
+    static boolean isBackendUnavailable() {
+        return sBackend == BACKEND_UNAVAILABLE;
+    }
+
+    /**
+     * Look up the hidden method ahead of the first request, see {@link ZyPermissions#warmUp(Context, String[])}.
+     */
+    static void warmUp(@NonNull Context context) {
+        getBuildRequestPermissionsIntent(context);
+    }
+
+    /**
+     * Look up the hidden buildRequestPermissionsIntent method once per process.
+     *
+     * @return the method, or null if it can not be used on this device
+     */
+    @Nullable
+    private static synchronized Method getBuildRequestPermissionsIntent(@NonNull Context context) {
+        if (sBuildRequestPermissionsIntent == null && sBackend == BACKEND_UNKNOWN) {
+            try {
+                sBuildRequestPermissionsIntent = context.getPackageManager().getClass()
+                        .getMethod("buildRequestPermissionsIntent", String[].class);
+            } catch (Exception e) {
+                markUnavailable(e);
+            }
+        }
+        return sBuildRequestPermissionsIntent;
+    }
+
+    private static synchronized void markUnavailable(@Nullable Exception e) {
+        sBackend = BACKEND_UNAVAILABLE;
+        sBuildRequestPermissionsIntent = null;
+        Log.i(TAG, "buildRequestPermissionsIntent is not available, requesting permissions through the fragment"
+                + (e != null ? ": " + e : ""));
+    }
+
     @Override
     public boolean onActivityResult(@NonNull Activity activity, int requestCode, int resultCode, @Nullable Intent data) {
-        ActivityCompat.setPermissionCompatDelegate(null);
+        if (!ZyPermissionConstant.isLibraryRequestCode(requestCode)) {
+            return false;
+        }
         String[] permissions = (data != null) ? data.getStringArrayExtra(
                 ZyPermissionConstant.EXTRA_REQUEST_PERMISSIONS_NAMES) : new String[0];
         final int[] grantResults = (data != null) ? data.getIntArrayExtra(
                 ZyPermissionConstant.EXTRA_REQUEST_PERMISSIONS_RESULTS) : new int[0];
-        ZyPermissions.getInstance().notifyPermissionsChange(activity, permissions, grantResults);
+        ZyPermissions.getInstance().notifyPermissionsChange(activity, requestCode,
+                permissions != null ? permissions : new String[0], grantResults != null ? grantResults : new int[0]);
         return true;
     }
 }
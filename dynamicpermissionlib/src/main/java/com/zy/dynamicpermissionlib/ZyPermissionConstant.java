@@ -20,6 +20,26 @@ public class ZyPermissionConstant {
 
     public static final int PERMISSIONS_REQUEST_CODE = 1;
 
+    /**
+     * The first request code of the range reserved for the library, every system request
+     * gets its own code from this range so concurrent requests can be told apart.
+     */
+    public static final int REQUEST_CODE_RANGE_START = 0x5A00;
+
+    /**
+     * The number of request codes reserved for the library.
+     */
+    public static final int REQUEST_CODE_RANGE_SIZE = 0x100;
+
+    /**
+     * @param requestCode the request code to test
+     * @return true if the request code belongs to the range reserved for the library
+     */
+    public static boolean isLibraryRequestCode(int requestCode) {
+        return requestCode >= REQUEST_CODE_RANGE_START
+                && requestCode < REQUEST_CODE_RANGE_START + REQUEST_CODE_RANGE_SIZE;
+    }
+
 
     /**
      * The names of the requested permissions.
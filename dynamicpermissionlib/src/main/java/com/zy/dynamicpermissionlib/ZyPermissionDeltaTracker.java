@@ -0,0 +1,54 @@
+package com.zy.dynamicpermissionlib;
+
+import androidx.annotation.NonNull;
+
+import com.zy.dynamicpermissionlib.core.ZyPermissionBits;
+
+/**
+ * The last known grant vector of the permissions the library has seen, used to find the
+ * permissions changed in the system Settings while the application was in background.
+ * A permission is tracked from its first check, and its known state follows the results of the
+ * requests and the comparisons made on Activity resume.
+ */
+final class ZyPermissionDeltaTracker {
+
+    private final ZyPermissionBits mTracked = ZyPermissionIds.newBits();
+    private final ZyPermissionBits mGranted = ZyPermissionIds.newBits();
+
+    /**
+     * Start tracking the permission, unless it is already tracked.
+     */
+    synchronized void trackIfAbsent(int id, boolean granted) {
+        if (!mTracked.get(id)) {
+            update(id, granted);
+        }
+    }
+
+    /**
+     * Track the permission with a state the application already knows about.
+     */
+    synchronized void update(int id, boolean granted) {
+        mTracked.set(id);
+        if (granted) {
+            mGranted.set(id);
+        } else {
+            mGranted.clear(id);
+        }
+    }
+
+    /**
+     * @return true if the tracked state of the permission was different, it is updated
+     */
+    synchronized boolean compareAndUpdate(int id, boolean granted) {
+        if (mGranted.get(id) == granted) {
+            return false;
+        }
+        update(id, granted);
+        return true;
+    }
+
+    @NonNull
+    synchronized String[] getTrackedPermissions() {
+        return mTracked.toPermissions();
+    }
+}
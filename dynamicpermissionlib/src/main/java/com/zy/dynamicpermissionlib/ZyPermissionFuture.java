@@ -0,0 +1,163 @@
+package com.zy.dynamicpermissionlib;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The pending result of {@link ZyPermissions#requestPermissionsAsync(android.app.Activity, String[], Executor, long)}.
+ * CompletableFuture needs API level 24, so this is a minimal equivalent: the result can be waited
+ * for with {@link #get()}, which must not be called on the main thread, or received by the callbacks
+ * registered with {@link #whenComplete(Callback)}, which run on the executor given to the request,
+ * or directly on the completing thread when there is none.
+ * The future fails with a {@link TimeoutException} when the request times out, and cancelling it only
+ * stops waiting: a system dialog already showing is not dismissed, but the request no longer holds
+ * its activity.
+ */
+public final class ZyPermissionFuture implements Future<ZyPermissionResult> {
+
+    /**
+     * Receives the outcome of the request, exactly one of the parameters is not null.
+     */
+    public interface Callback {
+        void onComplete(@Nullable ZyPermissionResult result, @Nullable Throwable error);
+    }
+
+    private final Executor mExecutor;
+    private final CountDownLatch mDone = new CountDownLatch(1);
+    private final List<Callback> mCallbacks = new ArrayList<Callback>(1);
+
+    private boolean mCompleted = false;
+    private ZyPermissionResult mResult = null;
+    private Throwable mError = null;
+    private Runnable mOnFinish = null;
+
+    ZyPermissionFuture(@Nullable Executor executor) {
+        mExecutor = executor;
+    }
+
+    /**
+     * @param callback the callback to run when the request completes, right away if it already has
+     * @return this future
+     */
+    @NonNull
+    public ZyPermissionFuture whenComplete(@NonNull Callback callback) {
+        synchronized (this) {
+            if (!mCompleted) {
+                mCallbacks.add(callback);
+                return this;
+            }
+        }
+        deliver(callback);
+        return this;
+    }
+
+    /**
+     * @param onFinish run once on the completing thread when the future completes, fails or is
+     *                 cancelled, before the callbacks, to release what the request holds
+     */
+    synchronized void setOnFinish(@Nullable Runnable onFinish) {
+        mOnFinish = onFinish;
+    }
+
+    boolean complete(@NonNull ZyPermissionResult result) {
+        return finish(result, null);
+    }
+
+    boolean fail(@NonNull Throwable error) {
+        return finish(null, error);
+    }
+
+    private boolean finish(@Nullable ZyPermissionResult result, @Nullable Throwable error) {
+        Callback[] callbacks;
+        Runnable onFinish;
+        synchronized (this) {
+            if (mCompleted) {
+                return false;
+            }
+            mCompleted = true;
+            mResult = result;
+            mError = error;
+            callbacks = mCallbacks.toArray(new Callback[mCallbacks.size()]);
+            mCallbacks.clear();
+            onFinish = mOnFinish;
+            mOnFinish = null;
+        }
+        mDone.countDown();
+        if (onFinish != null) {
+            onFinish.run();
+        }
+        for (Callback callback : callbacks) {
+            deliver(callback);
+        }
+        return true;
+    }
+
+    private void deliver(@NonNull final Callback callback) {
+        final ZyPermissionResult result;
+        final Throwable error;
+        synchronized (this) {
+            result = mResult;
+            error = mError;
+        }
+        if (mExecutor == null) {
+            callback.onComplete(result, error);
+            return;
+        }
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                callback.onComplete(result, error);
+            }
+        });
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return finish(null, new CancellationException("Permission request cancelled"));
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return mError instanceof CancellationException;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return mCompleted;
+    }
+
+    @Override
+    public ZyPermissionResult get() throws InterruptedException, ExecutionException {
+        mDone.await();
+        return report();
+    }
+
+    @Override
+    public ZyPermissionResult get(long timeout, @NonNull TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        if (!mDone.await(timeout, unit)) {
+            throw new TimeoutException();
+        }
+        return report();
+    }
+
+    private synchronized ZyPermissionResult report() throws ExecutionException {
+        if (mError instanceof CancellationException) {
+            throw new CancellationException(mError.getMessage());
+        }
+        if (mError != null) {
+            throw new ExecutionException(mError);
+        }
+        return mResult;
+    }
+}
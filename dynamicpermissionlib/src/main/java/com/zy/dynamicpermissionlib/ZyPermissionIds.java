@@ -0,0 +1,43 @@
+package com.zy.dynamicpermissionlib;
+
+import androidx.annotation.NonNull;
+
+import com.zy.dynamicpermissionlib.core.ZyPermissionBits;
+import com.zy.dynamicpermissionlib.core.ZyPermissionIndex;
+
+/**
+ * The process wide {@link ZyPermissionIndex} of the library, built on {@link ZyPermissionTable}
+ * so the platform permissions use their index in the table as id.
+ */
+final class ZyPermissionIds {
+
+    static final ZyPermissionIndex INDEX = new ZyPermissionIndex(ZyPermissionTable.NAMES);
+
+    private ZyPermissionIds() {
+    }
+
+    /**
+     * @param permission the permission name
+     * @return the id of the permission, allocated on the first call for names outside the table
+     */
+    static int idOf(@NonNull String permission) {
+        return INDEX.idOf(permission);
+    }
+
+    /**
+     * @param id an id returned by {@link #idOf(String)}
+     * @return the permission name of the id
+     */
+    @NonNull
+    static String nameOf(int id) {
+        return INDEX.nameOf(id);
+    }
+
+    /**
+     * @return an empty set of permission ids of the index
+     */
+    @NonNull
+    static ZyPermissionBits newBits() {
+        return new ZyPermissionBits(INDEX);
+    }
+}
@@ -0,0 +1,344 @@
+package com.zy.dynamicpermissionlib;
+
+import android.content.Context;
+import android.os.Build;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.WorkerThread;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Append-only journal of the request history of every permission, kept in the no-backup files of
+ * the application. shouldShowRequestPermissionRationale can not tell a permission which was never
+ * requested from a permission denied forever, the journal can: a permission is forbidden when a
+ * request made by the library was denied without rationale right after a denial with rationale.
+ * A single denial without rationale is not enough, it is also what a dismissed dialog reports since
+ * Android R and what some ROMs, e.g. MIUI, report for every denial.
+ * The journal is read once and the records are applied and appended in order by a single background
+ * thread, so neither the read nor the writes touch the disk on the calling thread, and nothing is
+ * forbidden until the read is done. The file is compacted into one snapshot record per permission
+ * when it grows.
+ * Each record is a type byte followed by the modified UTF-8 permission name, the snapshot records
+ * add the request count, the denial count and the last outcome.
+ */
+final class ZyPermissionJournal {
+
+    private static final String TAG = "ZyPermissionJournal";
+
+    private static final String FILE_NAME = "zy_permission_journal";
+
+    static final byte RECORD_REQUESTED = 1;
+    static final byte RECORD_GRANTED = 2;
+    static final byte RECORD_DENIED = 3;
+    static final byte RECORD_FORBIDDEN = 4;
+    /**
+     * The permission can be requested again, e.g. the user changed it in the system Settings.
+     */
+    static final byte RECORD_CLEARED = 5;
+    private static final byte RECORD_SNAPSHOT = 6;
+
+    private static final byte OUTCOME_NONE = 0;
+
+    /**
+     * The file is compacted when it holds this many records more than permissions.
+     */
+    private static final int COMPACT_THRESHOLD = 256;
+
+    private final Map<String, History> mHistory = new HashMap<String, History>();
+    private final ExecutorService mWriter = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(@NonNull Runnable runnable) {
+            Thread thread = new Thread(runnable, "ZyPermissionJournal");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private File mFile = null;
+    private boolean mLoadScheduled = false;
+    private int mRecordCount = 0;
+
+    /**
+     * Schedule the read of the journal on the writer thread, only the first call does it.
+     *
+     * @param context any Context of the host application
+     */
+    void load(@NonNull final Context context) {
+        synchronized (this) {
+            if (mLoadScheduled) {
+                return;
+            }
+            mLoadScheduled = true;
+        }
+        mWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                read(context);
+            }
+        });
+    }
+
+    @WorkerThread
+    private void read(@NonNull Context context) {
+        File dir = Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP
+                ? context.getNoBackupFilesDir() : context.getFilesDir();
+        if (dir == null) {
+            return;
+        }
+        File file = new File(dir, FILE_NAME);
+        if (!file.exists()) {
+            synchronized (this) {
+                mFile = file;
+            }
+            return;
+        }
+        Map<String, History> history = new HashMap<String, History>();
+        int recordCount = 0;
+        boolean truncated = false;
+        DataInputStream input = null;
+        try {
+            input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            while (true) {
+                byte type;
+                try {
+                    type = input.readByte();
+                } catch (EOFException e) {
+                    break;
+                }
+                String permission = input.readUTF();
+                History permissionHistory = history.get(permission);
+                if (permissionHistory == null) {
+                    permissionHistory = new History();
+                    history.put(permission, permissionHistory);
+                }
+                if (type == RECORD_SNAPSHOT) {
+                    permissionHistory.requests = input.readInt();
+                    permissionHistory.denials = input.readInt();
+                    permissionHistory.outcome = input.readByte();
+                } else {
+                    permissionHistory.apply(type);
+                }
+                recordCount++;
+            }
+        } catch (IOException e) {
+            //a record truncated by a crash, the records read so far are kept and the file is rewritten
+            Log.w(TAG, "Could not read the whole permission journal", e);
+            truncated = true;
+        } finally {
+            closeQuietly(input);
+        }
+        Map<String, History> snapshot;
+        synchronized (this) {
+            mHistory.putAll(history);
+            mRecordCount = recordCount;
+            mFile = file;
+            snapshot = truncated ? takeSnapshot() : null;
+        }
+        if (snapshot != null) {
+            compact(snapshot);
+        }
+    }
+
+    /**
+     * @return true if the last request of the permission was denied without rationale
+     */
+    synchronized boolean isForbidden(@NonNull String permission) {
+        History history = mHistory.get(permission);
+        return history != null && history.outcome == RECORD_FORBIDDEN;
+    }
+
+    /**
+     * @return true if the last request of the permission was denied with rationale
+     */
+    synchronized boolean isDenied(@NonNull String permission) {
+        History history = mHistory.get(permission);
+        return history != null && history.outcome == RECORD_DENIED;
+    }
+
+    /**
+     * @return the permissions currently considered forbidden
+     */
+    @NonNull
+    synchronized List<String> getForbiddenPermissions() {
+        List<String> forbidden = new ArrayList<String>(0);
+        for (Map.Entry<String, History> entry : mHistory.entrySet()) {
+            if (entry.getValue().outcome == RECORD_FORBIDDEN) {
+                forbidden.add(entry.getKey());
+            }
+        }
+        return forbidden;
+    }
+
+    /**
+     * Record an event of the permission. A grant or a clear which does not change the last outcome
+     * is not written, so re-verifying the history does not grow the journal.
+     *
+     * @param permission the permission
+     * @param type       one of the RECORD_ constants
+     */
+    void append(@NonNull final String permission, final byte type) {
+        mWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                apply(permission, type);
+            }
+        });
+    }
+
+    /**
+     * Apply the record to the history, always after the read of the journal since both run on the
+     * writer thread, then write it or compact the file.
+     */
+    @WorkerThread
+    private void apply(@NonNull String permission, byte type) {
+        Map<String, History> snapshot = null;
+        synchronized (this) {
+            if (mFile == null) {
+                return;
+            }
+            History history = historyOf(permission);
+            if ((type == RECORD_GRANTED && history.outcome == RECORD_GRANTED)
+                    || (type == RECORD_CLEARED && history.outcome == OUTCOME_NONE)) {
+                return;
+            }
+            history.apply(type);
+            mRecordCount++;
+            if (mRecordCount - mHistory.size() >= COMPACT_THRESHOLD) {
+                snapshot = takeSnapshot();
+            }
+        }
+        if (snapshot != null) {
+            compact(snapshot);
+        } else {
+            write(permission, type);
+        }
+    }
+
+    @NonNull
+    private History historyOf(@NonNull String permission) {
+        History history = mHistory.get(permission);
+        if (history == null) {
+            history = new History();
+            mHistory.put(permission, history);
+        }
+        return history;
+    }
+
+    @WorkerThread
+    private void write(@NonNull String permission, byte type) {
+        DataOutputStream output = null;
+        try {
+            output = new DataOutputStream(new FileOutputStream(mFile, true));
+            output.writeByte(type);
+            output.writeUTF(permission);
+        } catch (IOException e) {
+            Log.w(TAG, "Could not append to the permission journal", e);
+        } finally {
+            closeQuietly(output);
+        }
+    }
+
+    /**
+     * Must be called while holding the journal lock.
+     *
+     * @return a copy of the history to compact the file with
+     */
+    @NonNull
+    private Map<String, History> takeSnapshot() {
+        Map<String, History> snapshot = new HashMap<String, History>(mHistory.size());
+        for (Map.Entry<String, History> entry : mHistory.entrySet()) {
+            snapshot.put(entry.getKey(), entry.getValue().copy());
+        }
+        mRecordCount = snapshot.size();
+        return snapshot;
+    }
+
+    @WorkerThread
+    private void compact(@NonNull Map<String, History> snapshot) {
+        File temp = new File(mFile.getPath() + ".tmp");
+        DataOutputStream output = null;
+        try {
+            output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            for (Map.Entry<String, History> entry : snapshot.entrySet()) {
+                History history = entry.getValue();
+                output.writeByte(RECORD_SNAPSHOT);
+                output.writeUTF(entry.getKey());
+                output.writeInt(history.requests);
+                output.writeInt(history.denials);
+                output.writeByte(history.outcome);
+            }
+            output.close();
+            output = null;
+            if (!temp.renameTo(mFile)) {
+                Log.w(TAG, "Could not replace the permission journal");
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Could not compact the permission journal", e);
+        } finally {
+            closeQuietly(output);
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private static final class History {
+        int requests = 0;
+        int denials = 0;
+        byte outcome = OUTCOME_NONE;
+
+        void apply(byte type) {
+            switch (type) {
+                case RECORD_REQUESTED:
+                    requests++;
+                    break;
+                case RECORD_DENIED:
+                case RECORD_FORBIDDEN:
+                    denials++;
+                    outcome = type;
+                    break;
+                case RECORD_GRANTED:
+                    outcome = type;
+                    break;
+                case RECORD_CLEARED:
+                    outcome = OUTCOME_NONE;
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        History copy() {
+            History copy = new History();
+            copy.requests = requests;
+            copy.denials = denials;
+            copy.outcome = outcome;
+            return copy;
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package com.zy.dynamicpermissionlib;
+
+import android.os.Build;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Instrumentation of the permission request pipeline. It keeps the count, total and maximum
+ * duration of each timing and the value of each counter, forwards every sample to an optional
+ * {@link Listener}, and renders a text snapshot with {@link #dump()} so slow devices and OEM
+ * quirks can be spotted in production.
+ * Get the instance with {@link ZyPermissions#getMetrics()}.
+ */
+public final class ZyPermissionMetrics {
+
+    /**
+     * Duration of a grant-state check which was not answered by the cache.
+     */
+    public static final int TIMING_STATE_CHECK = 0;
+    /**
+     * Duration of the call issuing a system request, through the compat delegate or the fragment.
+     */
+    public static final int TIMING_BACKEND_DISPATCH = 1;
+    /**
+     * Time from the system request to the requesting Activity being paused by the permission dialog.
+     */
+    public static final int TIMING_DIALOG_SHOWN = 2;
+    /**
+     * Time from the system request to its result.
+     */
+    public static final int TIMING_RESULT_RECEIVED = 3;
+    /**
+     * Time spent waiting for the lock of a request session.
+     */
+    public static final int TIMING_LOCK_WAIT = 4;
+
+    private static final String[] TIMING_NAMES = {
+            "state_check", "backend_dispatch", "dialog_shown", "result_received", "lock_wait"
+    };
+
+    public static final int COUNTER_GRANTED = 0;
+    public static final int COUNTER_DENIED = 1;
+    public static final int COUNTER_FORBIDDEN = 2;
+    public static final int COUNTER_NOT_FOUND = 3;
+    /**
+     * Results nobody was waiting for and Unity messages which could not be sent.
+     */
+    public static final int COUNTER_DROPPED = 4;
+    public static final int COUNTER_CACHE_HIT = 5;
+    public static final int COUNTER_CACHE_MISS = 6;
+    public static final int COUNTER_SYSTEM_REQUEST = 7;
+    /**
+     * Results of requests evicted after their time-to-live.
+     */
+    public static final int COUNTER_TIMEOUT = 8;
+    /**
+     * Permissions answered without request because the manifest does not declare them.
+     */
+    public static final int COUNTER_UNDECLARED = 9;
+
+    private static final String[] COUNTER_NAMES = {
+            "granted", "denied", "forbidden", "not_found", "dropped", "cache_hit", "cache_miss", "system_request",
+            "timeout", "undeclared"
+    };
+
+    /**
+     * Receives the samples as they are recorded. It is called on the thread recording the
+     * sample, sometimes while holding a library lock, so it must return quickly.
+     */
+    public interface Listener {
+        /**
+         * @param timing         one of the TIMING_ constants
+         * @param durationNanos  the duration of the sample in nanoseconds
+         */
+        void onTiming(int timing, long durationNanos);
+
+        /**
+         * @param counter one of the COUNTER_ constants
+         */
+        void onCount(int counter);
+    }
+
+    private final AtomicLongArray mTimingCounts = new AtomicLongArray(TIMING_NAMES.length);
+    private final AtomicLongArray mTimingTotals = new AtomicLongArray(TIMING_NAMES.length);
+    private final AtomicLongArray mTimingMax = new AtomicLongArray(TIMING_NAMES.length);
+    private final AtomicLongArray mCounters = new AtomicLongArray(COUNTER_NAMES.length);
+
+    private volatile Listener mListener = null;
+
+    ZyPermissionMetrics() {
+    }
+
+    /**
+     * @param listener the listener receiving every sample, or null to remove it
+     */
+    public void setListener(@Nullable Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * @param timing one of the TIMING_ constants
+     * @return the name of the timing used by {@link #dump()}
+     */
+    @NonNull
+    public static String timingName(int timing) {
+        return TIMING_NAMES[timing];
+    }
+
+    /**
+     * @param counter one of the COUNTER_ constants
+     * @return the name of the counter used by {@link #dump()}
+     */
+    @NonNull
+    public static String counterName(int counter) {
+        return COUNTER_NAMES[counter];
+    }
+
+    /**
+     * @param counter one of the COUNTER_ constants
+     * @return the current value of the counter
+     */
+    public long getCount(int counter) {
+        return mCounters.get(counter);
+    }
+
+    /**
+     * Reset every timing and counter.
+     */
+    public void reset() {
+        for (int i = 0; i < TIMING_NAMES.length; i++) {
+            mTimingCounts.set(i, 0);
+            mTimingTotals.set(i, 0);
+            mTimingMax.set(i, 0);
+        }
+        for (int i = 0; i < COUNTER_NAMES.length; i++) {
+            mCounters.set(i, 0);
+        }
+    }
+
+    void recordTiming(int timing, long durationNanos) {
+        mTimingCounts.incrementAndGet(timing);
+        mTimingTotals.addAndGet(timing, durationNanos);
+        long max;
+        do {
+            max = mTimingMax.get(timing);
+        } while (durationNanos > max && !mTimingMax.compareAndSet(timing, max, durationNanos));
+        Listener listener = mListener;
+        if (listener != null) {
+            listener.onTiming(timing, durationNanos);
+        }
+    }
+
+    /**
+     * Record the time elapsed since startNanos, a value returned by {@link System#nanoTime()}.
+     */
+    void recordSince(int timing, long startNanos) {
+        recordTiming(timing, System.nanoTime() - startNanos);
+    }
+
+    void count(int counter) {
+        mCounters.incrementAndGet(counter);
+        Listener listener = mListener;
+        if (listener != null) {
+            listener.onCount(counter);
+        }
+    }
+
+    /**
+     * @return a text snapshot of the device, every timing and every counter
+     */
+    @NonNull
+    public String dump() {
+        StringBuilder builder = new StringBuilder();
+        builder.append("device: ").append(Build.MANUFACTURER).append(' ').append(Build.MODEL)
+                .append(", sdk ").append(Build.VERSION.SDK_INT)
+                .append(", delegate backend ")
+                .append(ZyPermissionCompatDelegate.isBackendUnavailable() ? "unavailable" : "available")
+                .append('\n');
+        for (int i = 0; i < TIMING_NAMES.length; i++) {
+            long count = mTimingCounts.get(i);
+            long average = count == 0 ? 0 : mTimingTotals.get(i) / count;
+            builder.append(TIMING_NAMES[i])
+                    .append(": count=").append(count)
+                    .append(" avg=").append(average / 1000).append("us")
+                    .append(" max=").append(mTimingMax.get(i) / 1000).append("us")
+                    .append('\n');
+        }
+        for (int i = 0; i < COUNTER_NAMES.length; i++) {
+            builder.append(COUNTER_NAMES[i]).append(": ").append(mCounters.get(i)).append('\n');
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,92 @@
+package com.zy.dynamicpermissionlib;
+
+import android.Manifest;
+import android.os.Build;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import java.lang.reflect.Field;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Answers whether a permission exists on the running device. The answer comes from
+ * {@link ZyPermissionTable}, which is generated at build time from the platform of
+ * compileSdkVersion, so a lookup is a binary search over a sorted array plus an API level
+ * comparison: no reflection and no allocation.
+ * Only devices running a newer platform than compileSdkVersion may know permissions missing
+ * from the table, for those devices the unknown names are checked against Manifest.permission
+ * through reflection, which is done lazily, once, the first time such a name is looked up.
+ */
+final class ZyPermissionRegistry {
+
+    private static final String TAG = "ZyPermissionRegistry";
+
+    private ZyPermissionRegistry() {
+    }
+
+    /**
+     * @param permission the permission name
+     * @return the index of the permission in {@link ZyPermissionTable#NAMES}, or a negative value if
+     * the permission is not part of the table
+     */
+    static int indexOf(@NonNull String permission) {
+        return Arrays.binarySearch(ZyPermissionTable.NAMES, permission);
+    }
+
+    /**
+     * Permissions that do not exist on older versions of Android will be denied when you check
+     * whether you have them, which is problematic since a new permission is often added where
+     * there was no previous permission required. This method tells whether the permission exists
+     * on the running device, so those permissions can be reported as not found instead.
+     *
+     * @param permission the permission name
+     * @return true if the permission exists on the API level of the running device
+     */
+    static boolean isAvailable(@NonNull String permission) {
+        int index = indexOf(permission);
+        if (index >= 0) {
+            return Build.VERSION.SDK_INT >= ZyPermissionTable.SINCE[index]
+                    && Build.VERSION.SDK_INT < ZyPermissionTable.REMOVED[index];
+        }
+        if (Build.VERSION.SDK_INT > ZyPermissionTable.COMPILE_SDK) {
+            return NewerPlatformHolder.PERMISSIONS.contains(permission);
+        }
+        return false;
+    }
+
+    /**
+     * Load, on a device newer than compileSdkVersion, the permissions of the running platform
+     * ahead of the first lookup, see {@link ZyPermissions#warmUp(android.content.Context, String[])}.
+     */
+    static void warmUp() {
+        if (Build.VERSION.SDK_INT > ZyPermissionTable.COMPILE_SDK) {
+            NewerPlatformHolder.PERMISSIONS.size();
+        }
+    }
+
+    /**
+     * The permissions of the running platform, only loaded on devices newer than compileSdkVersion.
+     */
+    private static class NewerPlatformHolder {
+        private static final Set<String> PERMISSIONS = readPlatformPermissions();
+
+        private static Set<String> readPlatformPermissions() {
+            Set<String> permissions = new HashSet<String>();
+            Field[] fields = Manifest.permission.class.getFields();
+            for (Field field : fields) {
+                try {
+                    Object name = field.get(null);
+                    if (name instanceof String) {
+                        permissions.add((String) name);
+                    }
+                } catch (IllegalAccessException e) {
+                    Log.e(TAG, "Could not access field", e);
+                }
+            }
+            return permissions;
+        }
+    }
+}
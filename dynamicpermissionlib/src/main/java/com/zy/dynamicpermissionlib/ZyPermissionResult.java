@@ -0,0 +1,114 @@
+package com.zy.dynamicpermissionlib;
+
+import androidx.annotation.NonNull;
+
+/**
+ * The state of every permission of a request made with
+ * {@link ZyPermissions#requestPermissionsAsync(android.app.Activity, String[], java.util.concurrent.Executor, long)},
+ * in the order they were requested.
+ */
+public final class ZyPermissionResult {
+
+    public static final int STATE_GRANTED = 0;
+    public static final int STATE_DENIED = 1;
+    /**
+     * Denied, and the system will not show the dialog again for this permission.
+     */
+    public static final int STATE_FORBIDDEN = 2;
+    /**
+     * The permission does not exist on this Android version.
+     */
+    public static final int STATE_NOT_FOUND = 3;
+    /**
+     * The request got no result in time, see {@link ZyPermissions#setRequestTimeToLive(long)}.
+     */
+    public static final int STATE_TIMEOUT = 4;
+    /**
+     * The permission is not declared in the AndroidManifest.xml of the application, it was denied
+     * without request.
+     */
+    public static final int STATE_UNDECLARED = 5;
+
+    private final String[] mPermissions;
+    private final int[] mStates;
+
+    ZyPermissionResult(@NonNull String[] permissions, @NonNull int[] states) {
+        mPermissions = permissions;
+        mStates = states;
+    }
+
+    public int size() {
+        return mPermissions.length;
+    }
+
+    @NonNull
+    public String getPermission(int index) {
+        return mPermissions[index];
+    }
+
+    /**
+     * @return one of the STATE_ constants
+     */
+    public int getState(int index) {
+        return mStates[index];
+    }
+
+    /**
+     * @return one of the STATE_ constants, or -1 if the permission was not requested
+     */
+    public int getState(@NonNull String permission) {
+        for (int n = 0; n < mPermissions.length; n++) {
+            if (mPermissions[n].equals(permission)) {
+                return mStates[n];
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return true if every permission is granted or does not exist on this Android version,
+     * the same rule {@link ZyPermissionsResultAction} applies by default before calling onGranted
+     */
+    public boolean isGranted() {
+        for (int state : mStates) {
+            if (state != STATE_GRANTED && state != STATE_NOT_FOUND) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        for (int n = 0; n < mPermissions.length; n++) {
+            if (n > 0) {
+                builder.append(ZyPermissionsBatchResultAction.PERMISSION_SEPARATOR);
+            }
+            builder.append(mPermissions[n]).append(ZyPermissionsBatchResultAction.STATE_SEPARATOR).append(stateName(mStates[n]));
+        }
+        return builder.toString();
+    }
+
+    /**
+     * @param state one of the STATE_ constants
+     * @return the name of the state, as used in the Unity payloads
+     */
+    @NonNull
+    public static String stateName(int state) {
+        switch (state) {
+            case STATE_GRANTED:
+                return ZyPermissionsBatchResultAction.STATE_GRANTED;
+            case STATE_FORBIDDEN:
+                return ZyPermissionsBatchResultAction.STATE_FORBIDDEN;
+            case STATE_NOT_FOUND:
+                return ZyPermissionsBatchResultAction.STATE_NOT_FOUND;
+            case STATE_TIMEOUT:
+                return ZyPermissionsBatchResultAction.STATE_TIMEOUT;
+            case STATE_UNDECLARED:
+                return ZyPermissionsBatchResultAction.STATE_UNDECLARED;
+            default:
+                return ZyPermissionsBatchResultAction.STATE_DENIED;
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package com.zy.dynamicpermissionlib;
+
+import androidx.annotation.NonNull;
+
+/**
+ * A set of permissions registered with {@link ZyPermissions#registerPermissionSet(android.content.Context, String[])}.
+ * Everything a status query needs which does not change during the life of the process, the ids
+ * of the permissions and whether they exist on this device, is resolved at registration, so a
+ * query does not allocate.
+ */
+final class ZyPermissionSet {
+
+    final String[] permissions;
+    final int[] ids;
+    final boolean[] available;
+
+    ZyPermissionSet(@NonNull String[] permissions) {
+        this.permissions = permissions.clone();
+        ids = new int[permissions.length];
+        available = new boolean[permissions.length];
+        for (int n = 0; n < permissions.length; n++) {
+            ids[n] = ZyPermissionIds.idOf(permissions[n]);
+            available[n] = ZyPermissionRegistry.isAvailable(permissions[n]);
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package com.zy.dynamicpermissionlib;
+
+import android.content.pm.PackageManager;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.zy.dynamicpermissionlib.core.ZyPermissionBits;
+
+/**
+ * In-memory grant state of the permissions checked through {@link ZyPermissions}.
+ * The values are the same PackageManager states returned by checkSelfPermission,
+ * so a hit saves the checkSelfPermission binder call and, for phone and location
+ * permissions, the extra AppOpsManager call as well.
+ * The cache is cleared every time an Activity resumes, because the user may have
+ * changed the permissions in the system Settings while the app was in background.
+ * The states are kept as two bitsets indexed by permission id, see {@link ZyPermissionIds}.
+ */
+class ZyPermissionStateCache {
+
+    private final ZyPermissionBits mKnown = ZyPermissionIds.newBits();
+    private final ZyPermissionBits mGranted = ZyPermissionIds.newBits();
+
+    /**
+     * @param permission the permission to look up
+     * @return the cached PackageManager state of the permission, or null if it is not cached
+     */
+    @Nullable
+    Integer get(@NonNull String permission) {
+        return get(ZyPermissionIds.idOf(permission));
+    }
+
+    /**
+     * @param id the id of the permission to look up
+     * @return the cached PackageManager state of the permission, or null if it is not cached
+     */
+    @Nullable
+    synchronized Integer get(int id) {
+        if (!mKnown.get(id)) {
+            return null;
+        }
+        return mGranted.get(id) ? PackageManager.PERMISSION_GRANTED : PackageManager.PERMISSION_DENIED;
+    }
+
+    void put(@NonNull String permission, int state) {
+        put(ZyPermissionIds.idOf(permission), state);
+    }
+
+    synchronized void put(int id, int state) {
+        mKnown.set(id);
+        if (state == PackageManager.PERMISSION_GRANTED) {
+            mGranted.set(id);
+        } else {
+            mGranted.clear(id);
+        }
+    }
+
+    void remove(@NonNull String permission) {
+        remove(ZyPermissionIds.idOf(permission));
+    }
+
+    synchronized void remove(int id) {
+        mKnown.clear(id);
+        mGranted.clear(id);
+    }
+
+    synchronized void clear() {
+        mKnown.clear();
+        mGranted.clear();
+    }
+}
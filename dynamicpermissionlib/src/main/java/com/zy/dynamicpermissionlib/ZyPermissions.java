@@ -1,29 +1,40 @@
 package com.zy.dynamicpermissionlib;
 
-import android.Manifest;
 import android.app.Activity;
-import android.app.AppOpsManager;
+import android.app.Application;
 import android.content.Context;
 import android.content.pm.PackageManager;
 import android.os.Build;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.os.Process;
-import android.text.TextUtils;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
 import androidx.core.app.ActivityCompat;
 import androidx.fragment.app.Fragment;
 import androidx.fragment.app.FragmentActivity;
 import androidx.fragment.app.FragmentManager;
+import androidx.fragment.app.FragmentTransaction;
 
-import java.lang.reflect.Field;
-import java.util.ArrayList;
+import com.zy.dynamicpermissionlib.core.ZyCallbackExecutor;
+import com.zy.dynamicpermissionlib.core.ZyEngineListener;
+import com.zy.dynamicpermissionlib.core.ZyPermissionBits;
+import com.zy.dynamicpermissionlib.core.ZyPermissionChecker;
+import com.zy.dynamicpermissionlib.core.ZyPermissionEngine;
+import com.zy.dynamicpermissionlib.core.ZyPermissionRequest;
+import com.zy.dynamicpermissionlib.core.ZyRequestBackend;
+
+import java.nio.ByteBuffer;
 import java.util.Arrays;
-import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
-import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Copyright 2019 kongxiaojun
@@ -44,18 +55,51 @@ public class ZyPermissions {
 
     private static final String TAG = "ZyPermissions";
 
-    private final Set<String> mPendingRequests = new HashSet<String>(1);
-    private final Set<String> mPermissions = new HashSet<String>(1);
-    private final List<ZyPermissionsResultAction> mPendingActions = new ArrayList<ZyPermissionsResultAction>(1);
+    private static final String STATE_REQUEST_CODE = "com.zy.dynamicpermissionlib.REQUEST_CODE";
+    private static final String STATE_REQUEST_PERMISSIONS = "com.zy.dynamicpermissionlib.REQUEST_PERMISSIONS";
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * The request bookkeeping, the Android specific parts are the adapters at the end of this class.
+     */
+    private final ZyPermissionEngine<Activity> mEngine = new ZyPermissionEngine<Activity>(ZyPermissionIds.INDEX,
+            new StateChecker(), new ActivityRequestBackend(), new MainLooperExecutor(),
+            ZyPermissionConstant.REQUEST_CODE_RANGE_START, ZyPermissionConstant.REQUEST_CODE_RANGE_SIZE);
+
+    private final ZyPermissionCompatDelegate mPermissionCompatDelegate = new ZyPermissionCompatDelegate();
+
+    private final ZyPermissionStateCache mStateCache = new ZyPermissionStateCache();
+    private final ZyPermissionJournal mJournal = new ZyPermissionJournal();
+    private volatile boolean mForbiddenFastFailEnabled = true;
+    /**
+     * The forbidden permissions already requested from the system once in this process.
+     */
+    private final ZyPermissionBits mForbiddenProbes = ZyPermissionIds.newBits();
+    private final List<ZyPermissionSet> mPermissionSets = new CopyOnWriteArrayList<ZyPermissionSet>();
+    private final ZyPermissionDeltaTracker mDeltaTracker = new ZyPermissionDeltaTracker();
+    private final ZyManifestPermissions mManifestPermissions = new ZyManifestPermissions();
+    private final ZyCheckStrategies mCheckStrategies = new ZyCheckStrategies();
+    private final List<OnPermissionsChangedListener> mPermissionsChangedListeners =
+            new CopyOnWriteArrayList<OnPermissionsChangedListener>();
+    private volatile boolean mStateCacheEnabled = true;
+    private final AtomicInteger mResumeCount = new AtomicInteger(0);
+    /**
+     * The number of Activity resumes seen when the warm-up prefetch started, -1 until it is done.
+     */
+    private volatile int mPrefetchResumeCount = -1;
+    private volatile boolean mLifecycleCallbacksRegistered = false;
+    private volatile boolean mAttachFragmentEagerly = false;
+    private volatile Context mApplicationContext = null;
 
-    private ZyPermissionCompatDelegate mPermissionCompatDelegate = new ZyPermissionCompatDelegate();
+    private final ZyPermissionMetrics mMetrics = new ZyPermissionMetrics();
 
     private static class SpaPermissionsHolder {
         private static final ZyPermissions INSTANCE = new ZyPermissions();
     }
 
     private ZyPermissions() {
-        initializePermissionsMap();
+        mEngine.setListener(new MetricsListener());
     }
 
     public static ZyPermissions getInstance() {
@@ -63,60 +107,318 @@ public class ZyPermissions {
     }
 
     /**
-     * This method uses reflection to read all the permissions in the Manifest class.
-     * This is necessary because some permissions do not exist on older versions of Android,
-     * since they do not exist, they will be denied when you check whether you have permission
-     * which is problematic since a new permission is often added where there was no previous
-     * permission required. We initialize a Set of available permissions and check the set
-     * when checking if we have permission since we want to know when we are denied a permission
-     * because it doesn't exist yet.
+     * Notified when permissions checked or requested through the library have been changed
+     * outside of the application, typically in the system Settings.
      */
-    private synchronized void initializePermissionsMap() {
-        Field[] fields = Manifest.permission.class.getFields();
-        for (Field field : fields) {
-            String name = null;
-            try {
-                name = (String) field.get("");
-            } catch (IllegalAccessException e) {
-                Log.e(TAG, "Could not access field", e);
+    public interface OnPermissionsChangedListener {
+        /**
+         * Called on the main thread when an Activity resumes, once for all the changes.
+         *
+         * @param changes the changed permissions with their new state
+         */
+        void onPermissionsChanged(@NonNull ZyPermissionResult changes);
+    }
+
+    /**
+     * @return the instrumentation of the permission request pipeline
+     */
+    @NonNull
+    public ZyPermissionMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    /**
+     * Build the lookup structures of the library and of the Unity bridge on a background thread,
+     * so the first request and the first Unity call do not pay for them on a latency sensitive
+     * thread, and prefetch the grant state of the permissions into the grant-state cache.
+     * It is opt-in: call it early, e.g. from Application.onCreate, or declare
+     * {@link ZyPermissionsInitProvider} in the manifest of the application.
+     *
+     * @param context     any Context of the host application
+     * @param permissions the permissions to prefetch, or null for the permissions requested in the manifest
+     */
+    public void warmUp(@NonNull Context context, @Nullable final String[] permissions) {
+        final Context applicationContext = context.getApplicationContext() != null
+                ? context.getApplicationContext() : context;
+        registerLifecycleCallbacks(applicationContext);
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                doWarmUp(applicationContext, permissions);
+            }
+        }, "ZyPermissionsWarmUp");
+        thread.start();
+    }
+
+    @WorkerThread
+    private void doWarmUp(@NonNull Context context, @Nullable String[] permissions) {
+        mJournal.load(context);
+        ZyPermissionRegistry.warmUp();
+        mCheckStrategies.resolve();
+        ZyUnityBridge.getInstance().resolve();
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            ZyPermissionCompatDelegate.warmUp(context);
+        }
+        String[] requestedPermissions = mManifestPermissions.load(context);
+        if (permissions == null) {
+            permissions = requestedPermissions;
+        }
+        if (permissions == null || !mStateCacheEnabled) {
+            return;
+        }
+        int resumeCount = mResumeCount.get();
+        for (String perm : permissions) {
+            if (ZyPermissionRegistry.isAvailable(perm)) {
+                checkSelfPermission(context, perm, false);
             }
-            mPermissions.add(name);
         }
+        mPrefetchResumeCount = resumeCount;
+    }
+
+    /**
+     * Enable or disable the grant-state cache used by the check methods that do not take
+     * a useCache parameter. It is enabled by default.
+     *
+     * @param enabled true to answer the checks from the cache when possible
+     */
+    public void setStateCacheEnabled(boolean enabled) {
+        mStateCacheEnabled = enabled;
+        if (!enabled) {
+            mStateCache.clear();
+        }
+    }
+
+    /**
+     * Drop every cached grant state, the next checks will query the system again.
+     */
+    public void clearStateCache() {
+        mStateCache.clear();
     }
 
     /**
-     * This method adds the {@link ZyPermissionsResultAction} to the current list
-     * of pending actions that will be completed when the permissions are
-     * received. The list of permissions passed to this method are registered
-     * in the ZyPermissionsResultAction object so that it will be notified of changes
-     * made to these permissions.
+     * Called by {@link ZyPermissionsLifecycleCallbacks} when an Activity of the host application resumes.
+     * The user may have changed the permissions in the system Settings meanwhile, so the cached
+     * grant states can not be trusted anymore, unless they were prefetched by the warm-up with no
+     * Activity resumed since: the first resume of the process then keeps them.
      *
-     * @param permissions the required permissions for the action to be executed.
-     * @param action      the action to add to the current list of pending actions.
+     * @param activity the resumed activity
      */
-    private synchronized void addPendingAction(@NonNull String[] permissions,
-                                               @Nullable ZyPermissionsResultAction action) {
-        if (action == null) {
+    void onActivityResumed(@NonNull Activity activity) {
+        if (mResumeCount.getAndIncrement() != mPrefetchResumeCount) {
+            mStateCache.clear();
+        }
+        reverifyForbiddenPermissions(activity);
+        dispatchPermissionsChanges(activity);
+    }
+
+    /**
+     * Add a listener of the permissions changed outside of the application. The grant state of
+     * every tracked permission is compared with its last known state when an Activity resumes,
+     * which is only done while at least one listener is registered.
+     *
+     * @param context  any Context of the host application
+     * @param listener the listener to add
+     */
+    public void addOnPermissionsChangedListener(@NonNull Context context, @NonNull OnPermissionsChangedListener listener) {
+        registerLifecycleCallbacks(context);
+        mPermissionsChangedListeners.add(listener);
+    }
+
+    /**
+     * @param listener the listener to remove
+     */
+    public void removeOnPermissionsChangedListener(@NonNull OnPermissionsChangedListener listener) {
+        mPermissionsChangedListeners.remove(listener);
+    }
+
+    private void dispatchPermissionsChanges(@NonNull Activity activity) {
+        if (mPermissionsChangedListeners.isEmpty() || Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+            return;
+        }
+        String[] tracked = mDeltaTracker.getTrackedPermissions();
+        String[] changed = new String[tracked.length];
+        int[] states = new int[tracked.length];
+        int count = 0;
+        for (String perm : tracked) {
+            boolean granted = checkSelfPermission(activity, perm, false) == PackageManager.PERMISSION_GRANTED;
+            if (mDeltaTracker.compareAndUpdate(ZyPermissionIds.idOf(perm), granted)) {
+                changed[count] = perm;
+                states[count] = granted ? ZyPermissionResult.STATE_GRANTED
+                        : isForbiddenInJournal(perm) ? ZyPermissionResult.STATE_FORBIDDEN : ZyPermissionResult.STATE_DENIED;
+                count++;
+            }
+        }
+        if (count == 0) {
             return;
         }
-        action.registerPermissions(permissions);
-        mPendingActions.add(action);
+        ZyPermissionResult changes = new ZyPermissionResult(Arrays.copyOf(changed, count), Arrays.copyOf(states, count));
+        for (OnPermissionsChangedListener listener : mPermissionsChangedListeners) {
+            listener.onPermissionsChanged(changes);
+        }
+    }
+
+    /**
+     * When enabled, which is the default, a permission denied without rationale right after a
+     * denial with rationale, i.e. denied forever, is reported as denied right away, without a round trip through the system
+     * permission activity, and {@link #CheckIsForbiddenReq(Activity, String)} returns true for it.
+     * The history of the requests is journaled on disk so it survives the process. The user may reset
+     * such a permission in the system Settings without granting it, which neither its grant state nor
+     * its rationale tells, so its first request in each process still goes to the system and its
+     * result journals it again.
+     *
+     * @param enabled true to fail fast on the forbidden permissions
+     */
+    public void setForbiddenFastFailEnabled(boolean enabled) {
+        mForbiddenFastFailEnabled = enabled;
     }
 
     /**
-     * This method removes a pending action from the list of pending actions.
-     * It is used for cases where the permission has already been granted, so
-     * you immediately wish to remove the pending action from the queue and
-     * execute the action.
+     * Forget that the permission has been denied forever, e.g. after sending the user to the
+     * system Settings of the application, so the next request goes to the system again.
      *
-     * @param action the action to remove
+     * @param context    any Context of the host application
+     * @param permission the permission
+     */
+    public void clearForbiddenState(@NonNull Context context, @NonNull String permission) {
+        registerLifecycleCallbacks(context);
+        ZyPermissionJournal journal = getJournal();
+        if (journal != null) {
+            journal.append(permission, ZyPermissionJournal.RECORD_CLEARED);
+        }
+    }
+
+    /**
+     * @return the loaded journal, or null before the library has seen a Context
      */
-    private synchronized void removePendingAction(@Nullable ZyPermissionsResultAction action) {
-        for (Iterator<ZyPermissionsResultAction> iterator = mPendingActions.iterator();
-             iterator.hasNext(); ) {
-            ZyPermissionsResultAction weakRef = iterator.next();
-            if (weakRef == action || weakRef == null) {
-                iterator.remove();
+    @Nullable
+    private ZyPermissionJournal getJournal() {
+        Context context = mApplicationContext;
+        if (context == null) {
+            return null;
+        }
+        mJournal.load(context);
+        return mJournal;
+    }
+
+    /**
+     * The user may have changed the forbidden permissions in the system Settings meanwhile: the
+     * granted ones and the ones showing a rationale again can be requested again.
+     */
+    private void reverifyForbiddenPermissions(@NonNull Activity activity) {
+        ZyPermissionJournal journal = getJournal();
+        if (journal == null) {
+            return;
+        }
+        for (String perm : journal.getForbiddenPermissions()) {
+            if (checkSelfPermission(activity, perm, false) == PackageManager.PERMISSION_GRANTED) {
+                journal.append(perm, ZyPermissionJournal.RECORD_GRANTED);
+            } else if (ActivityCompat.shouldShowRequestPermissionRationale(activity, perm)) {
+                journal.append(perm, ZyPermissionJournal.RECORD_CLEARED);
+            }
+        }
+    }
+
+    /**
+     * Journal the results of a request of the library. A denial with rationale is journaled as
+     * denied, a denial without rationale is forbidden only right after such a denial: on its own
+     * it may be a dismissed dialog or a ROM which never shows a rationale, it is not journaled.
+     */
+    private void journalResults(@Nullable Context context, @NonNull String[] permissions, @NonNull int[] results) {
+        ZyPermissionJournal journal = getJournal();
+        if (journal == null) {
+            return;
+        }
+        int size = Math.min(permissions.length, results.length);
+        for (int n = 0; n < size; n++) {
+            if (results[n] == PackageManager.PERMISSION_GRANTED) {
+                journal.append(permissions[n], ZyPermissionJournal.RECORD_GRANTED);
+            } else if (!(context instanceof Activity)
+                    || ActivityCompat.shouldShowRequestPermissionRationale((Activity) context, permissions[n])) {
+                journal.append(permissions[n], ZyPermissionJournal.RECORD_DENIED);
+            } else if (journal.isDenied(permissions[n])) {
+                journal.append(permissions[n], ZyPermissionJournal.RECORD_FORBIDDEN);
+            }
+        }
+    }
+
+    /**
+     * Called by {@link ZyPermissionsLifecycleCallbacks} when an Activity of the host application pauses.
+     * The first pause of an Activity with a request in flight is the permission dialog showing up.
+     *
+     * @param activity the paused activity
+     */
+    void onActivityPaused(@NonNull Activity activity) {
+        ZyPermissionRequest request = mEngine.getInFlightRequest(activity);
+        if (request != null && request.markDialogShown()) {
+            mMetrics.recordSince(ZyPermissionMetrics.TIMING_DIALOG_SHOWN, request.getDispatchedAtNanos());
+        }
+    }
+
+    /**
+     * Called by {@link ZyPermissionsLifecycleCallbacks} when an Activity of the host application is
+     * destroyed. Its session is forgotten: the permissions that were only queued can not be requested
+     * anymore and are denied. A request in flight is still routed by its request code for the
+     * recreated Activity, but when the Activity is finishing its waiting actions are denied and
+     * released, so that they do not keep the Activity alive until the request expires.
+     *
+     * @param activity the destroyed activity
+     */
+    void onActivityDestroyed(@NonNull Activity activity) {
+        mEngine.onHostDestroyed(activity, activity.isFinishing() && !activity.isChangingConfigurations());
+    }
+
+    /**
+     * Called by {@link ZyAppOpsWatcher} when the mode of an op changes, the cached grant states
+     * of the permissions checked through that op are dropped.
+     *
+     * @param op the op whose mode changed
+     */
+    void onAppOpChanged(@NonNull String op) {
+        mCheckStrategies.onAppOpChanged(op, mStateCache);
+    }
+
+    /**
+     * Register a strategy refining the grant state of some permissions on the devices of a
+     * manufacturer, e.g. for a ROM whose permission manager keeps its own state. The strategies are
+     * resolved once for the device, the permissions without strategy are checked with
+     * ActivityCompat alone. A strategy registered later replaces the previous ones of the same kind
+     * for its permissions, including the built-in AppOps checks applied on every device from M, and a
+     * strategy for a manufacturer always wins over the ones for every device. The grant-state cache
+     * is cleared.
+     *
+     * @param manufacturer the Build.MANUFACTURER of the devices, case insensitive, or null for every device
+     * @param minSdk       the lowest SDK level the strategy applies to
+     * @param permissions  the permissions checked with the strategy
+     * @param strategy     the strategy
+     */
+    public void registerCheckStrategy(@Nullable String manufacturer, int minSdk,
+                                      @NonNull String[] permissions, @NonNull ZyPermissionCheckStrategy strategy) {
+        mCheckStrategies.addRule(manufacturer, minSdk, permissions, strategy);
+        mStateCache.clear();
+    }
+
+    /**
+     * Register {@link ZyPermissionsLifecycleCallbacks} on the host application the first time
+     * the library sees a Context, so the grant-state cache is invalidated on Activity resume.
+     *
+     * @param context any Context of the host application
+     */
+    private void registerLifecycleCallbacks(@NonNull Context context) {
+        if (mApplicationContext == null) {
+            mApplicationContext = context.getApplicationContext();
+        }
+        if (mLifecycleCallbacksRegistered) {
+            return;
+        }
+        synchronized (mStateCache) {
+            if (mLifecycleCallbacksRegistered) {
+                return;
+            }
+            Context applicationContext = context.getApplicationContext();
+            if (applicationContext instanceof Application) {
+                ((Application) applicationContext).registerActivityLifecycleCallbacks(new ZyPermissionsLifecycleCallbacks());
+                mLifecycleCallbacksRegistered = true;
             }
         }
     }
@@ -133,13 +435,26 @@ public class ZyPermissions {
      * @param permissions the permissions to check
      * @return true if you have been granted all the permissions, false otherwise
      */
-    public synchronized boolean hasAllPermissions(@Nullable Context context, @NonNull String[] permissions) {
+    public boolean hasAllPermissions(@Nullable Context context, @NonNull String[] permissions) {
+        return hasAllPermissions(context, permissions, mStateCacheEnabled);
+    }
+
+    /**
+     * Same as {@link #hasAllPermissions(Context, String[])}, but the caller decides whether
+     * the grant-state cache may answer the check.
+     *
+     * @param context     the Context necessary to check the permission
+     * @param permissions the permissions to check
+     * @param useCache    true to use the cached grant states, false to always query the system
+     * @return true if you have been granted all the permissions, false otherwise
+     */
+    public boolean hasAllPermissions(@Nullable Context context, @NonNull String[] permissions, boolean useCache) {
         if (context == null) {
             return false;
         }
         boolean hasAllPermissions = true;
         for (String perm : permissions) {
-            hasAllPermissions &= hasPermission(context, perm);
+            hasAllPermissions &= hasPermission(context, perm, useCache);
         }
         return hasAllPermissions;
     }
@@ -157,74 +472,170 @@ public class ZyPermissions {
      * @return true if you have been granted the permission, false otherwise
      */
     public boolean hasPermission(@Nullable Context context, @NonNull String permission) {
-        return context != null && (checkSelfPermission(context, permission)
+        return hasPermission(context, permission, mStateCacheEnabled);
+    }
+
+    /**
+     * Same as {@link #hasPermission(Context, String)}, but the caller decides whether
+     * the grant-state cache may answer the check.
+     *
+     * @param context    the Context necessary to check the permission
+     * @param permission the permission to check
+     * @param useCache   true to use the cached grant state, false to always query the system
+     * @return true if you have been granted the permission, false otherwise
+     */
+    public boolean hasPermission(@Nullable Context context, @NonNull String permission, boolean useCache) {
+        return context != null && (checkSelfPermission(context, permission, useCache)
                 == PackageManager.PERMISSION_GRANTED);
     }
 
+    /**
+     * Register a set of permissions whose states are queried in bulk with
+     * {@link #getPermissionStates(int, int[])}, e.g. every frame by a game. The work which does not
+     * change during the life of the process is done here, once.
+     *
+     * @param context     any Context of the host application
+     * @param permissions the permissions of the set
+     * @return the id of the set
+     */
+    public int registerPermissionSet(@NonNull Context context, @NonNull String[] permissions) {
+        registerLifecycleCallbacks(context);
+        synchronized (mPermissionSets) {
+            mPermissionSets.add(new ZyPermissionSet(permissions));
+            return mPermissionSets.size() - 1;
+        }
+    }
+
+    /**
+     * Write the state of every permission of the set into the array, in the order of the set, as
+     * one of the STATE_ constants of {@link ZyPermissionResult}. The states come from the grant-state
+     * cache when it is enabled, which is refreshed on every Activity resume, and from the journal of
+     * the forbidden permissions, so polling does not allocate nor make binder calls once warm.
+     *
+     * @param setId  the id returned by {@link #registerPermissionSet(Context, String[])}
+     * @param states the array receiving the states
+     * @return the number of states written, or -1 if the set is unknown
+     */
+    public int getPermissionStates(int setId, @NonNull int[] states) {
+        ZyPermissionSet set = getPermissionSet(setId);
+        Context context = mApplicationContext;
+        if (set == null || context == null) {
+            return -1;
+        }
+        int size = Math.min(set.permissions.length, states.length);
+        for (int n = 0; n < size; n++) {
+            states[n] = getPermissionState(context, set, n);
+        }
+        return size;
+    }
+
+    /**
+     * Same as {@link #getPermissionStates(int, int[])}, each state is written as one byte from index 0
+     * of the buffer, which may be a direct buffer shared with native code. The position of the
+     * buffer is not changed.
+     *
+     * @param setId  the id returned by {@link #registerPermissionSet(Context, String[])}
+     * @param states the buffer receiving the states
+     * @return the number of states written, or -1 if the set is unknown
+     */
+    public int getPermissionStates(int setId, @NonNull ByteBuffer states) {
+        ZyPermissionSet set = getPermissionSet(setId);
+        Context context = mApplicationContext;
+        if (set == null || context == null) {
+            return -1;
+        }
+        int size = Math.min(set.permissions.length, states.limit());
+        for (int n = 0; n < size; n++) {
+            states.put(n, (byte) getPermissionState(context, set, n));
+        }
+        return size;
+    }
+
+    @Nullable
+    private ZyPermissionSet getPermissionSet(int setId) {
+        if (setId < 0 || setId >= mPermissionSets.size()) {
+            return null;
+        }
+        return mPermissionSets.get(setId);
+    }
+
+    private int getPermissionState(@NonNull Context context, @NonNull ZyPermissionSet set, int n) {
+        if (!set.available[n]) {
+            return ZyPermissionResult.STATE_NOT_FOUND;
+        }
+        if (checkSelfPermission(context, set.permissions[n], set.ids[n], mStateCacheEnabled)
+                == PackageManager.PERMISSION_GRANTED) {
+            return ZyPermissionResult.STATE_GRANTED;
+        }
+        return isForbiddenInJournal(set.permissions[n])
+                ? ZyPermissionResult.STATE_FORBIDDEN : ZyPermissionResult.STATE_DENIED;
+    }
+
+    /**
+     * Set how long a request waits for other requests before the system request is issued,
+     * all the permissions requested meanwhile are merged into one system request.
+     * With the default value of 0 the requests made during the same main Looper tick are merged.
+     *
+     * @param windowMillis the coalescing window in milliseconds
+     */
+    public void setRequestCoalescingWindow(long windowMillis) {
+        mEngine.setCoalescingWindow(windowMillis);
+    }
+
+    /**
+     * Set how long a system request may wait for its result, 10 minutes by default. A request
+     * whose result never arrives, e.g. because its Activity was destroyed while the dialog was
+     * showing, is then evicted and its actions are called back with onTimeout, so they and the
+     * Activities they capture are released.
+     *
+     * @param ttlMillis the time-to-live in milliseconds, 0 to wait for the results forever
+     */
+    public void setRequestTimeToLive(long ttlMillis) {
+        mEngine.setRequestTimeToLive(ttlMillis);
+    }
+
     /**
      * This method is the latest method to apply for permission. It only needs to receive the result in ZyPermissionsResultAction. It is not necessary to receive the result in onRequestPermissionsResult method in Activity / Fragment.
      * Step：
      * 1. We receive the result through ActivityCompat.PermissionCompatDelegate. Here we need to call the hidden gray api reflection: buildRequestPermissionsIntent. Gray API list reference：https://android.googlesource.com/platform/frameworks/base/+/pie-release/config/hiddenapi-light-greylist.txt
      * 2. If the first step fails, such as a reflection call to a hidden gray API exception. Then start a ZyPermissionsFragment, request permissions through the empty ZyPermissionsFragment, and receive the result.
+     * Requests are coalesced per activity: the permissions requested within the coalescing window, or while
+     * a system request of the activity is in flight, are merged into its next system request, and a permission
+     * that is already pending is not requested again, the action simply waits for the pending result.
+     * Different activities have independent sessions, each system request gets its own request code.
      *
      * @param fragmentActivity the fragmentActivity necessary to request the permissions.
      * @param permissions      the list of permissions to request for the {@link ZyPermissionsResultAction}.
      * @param action           the ZyPermissionsResultAction to notify when the permissions are granted or denied.
      */
-    public synchronized void requestPermissions(@Nullable FragmentActivity fragmentActivity,
-                                                @NonNull String[] permissions,
-                                                @Nullable ZyPermissionsResultAction action) {
-        if (fragmentActivity == null) {
-            return;
-        }
-        this.mPendingActions.clear();
-        this.mPendingRequests.clear();
-        addPendingAction(permissions, action);
-        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
-            doPermissionWorkBeforeAndroidM(fragmentActivity, permissions, action);
-        } else {
-            List<String> permList = getPermissionsListToRequest(fragmentActivity, permissions, action);
-            if (permList.isEmpty()) {
-                //if there is no permission to request, there is no reason to keep the action int the list
-                removePendingAction(action);
-            } else {
-                String[] permsToRequest = permList.toArray(new String[permList.size()]);
-                mPendingRequests.addAll(permList);
-                ActivityCompat.setPermissionCompatDelegate(mPermissionCompatDelegate);
-                if (!mPermissionCompatDelegate.requestPermissions(fragmentActivity, permsToRequest, ZyPermissionConstant.PERMISSIONS_REQUEST_CODE)) {
-                    ActivityCompat.setPermissionCompatDelegate(null);
-                    requestPermissionsFromFragment(fragmentActivity, permissions);
-                }
-            }
-        }
+    public void requestPermissions(@Nullable FragmentActivity fragmentActivity,
+                                   @NonNull String[] permissions,
+                                   @Nullable ZyPermissionsResultAction action) {
+        requestPermissions((Activity) fragmentActivity, permissions, action);
     }
 
-    public synchronized void requestPermissions(@Nullable Activity activity,
-                                                @NonNull String[] permissions,
-                                                @Nullable ZyPermissionsResultAction action) {
+    /**
+     * Same as {@link #requestPermissions(FragmentActivity, String[], ZyPermissionsResultAction)}. If the
+     * activity is not a FragmentActivity and the first step fails, the permissions are requested with
+     * {@link ActivityCompat#requestPermissions(Activity, String[], int)} and the activity must forward
+     * its onRequestPermissionsResult to {@link #notifyPermissionsChange(Context, int, String[], int[])}.
+     *
+     * @param activity    the activity necessary to request the permissions.
+     * @param permissions the list of permissions to request for the {@link ZyPermissionsResultAction}.
+     * @param action      the ZyPermissionsResultAction to notify when the permissions are granted or denied.
+     */
+    public void requestPermissions(@Nullable Activity activity,
+                                   @NonNull String[] permissions,
+                                   @Nullable ZyPermissionsResultAction action) {
         if (activity == null) {
             return;
         }
-        this.mPendingActions.clear();
-        this.mPendingRequests.clear();
-        addPendingAction(permissions, action);
+        registerLifecycleCallbacks(activity);
         if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
             doPermissionWorkBeforeAndroidM(activity, permissions, action);
-        } else {
-            List<String> permList = getPermissionsListToRequest(activity, permissions, action);
-            if (permList.isEmpty()) {
-                //if there is no permission to request, there is no reason to keep the action int the list
-                removePendingAction(action);
-            } else {
-                String[] permsToRequest = permList.toArray(new String[permList.size()]);
-                mPendingRequests.addAll(permList);
-                ActivityCompat.setPermissionCompatDelegate(mPermissionCompatDelegate);
-                if (!mPermissionCompatDelegate.requestPermissions(activity, permsToRequest, ZyPermissionConstant.PERMISSIONS_REQUEST_CODE)) {
-                    ActivityCompat.setPermissionCompatDelegate(null);
-                    requestPermissions(activity, permissions, action);
-                }
-            }
+            return;
         }
+        mEngine.requestPermissions(activity, permissions, action == null ? null : new ZyResultActionSink(action));
     }
 
     /**
@@ -237,34 +648,232 @@ public class ZyPermissions {
      * @param permissions the list of permissions to request for the {@link ZyPermissionsResultAction}.
      * @param action      the ZyPermissionsResultAction to notify when the permissions are granted or denied.
      */
-    public synchronized void requestPermissions(@Nullable Fragment fragment,
-                                                @NonNull String[] permissions,
-                                                @Nullable ZyPermissionsResultAction action) {
+    public void requestPermissions(@Nullable Fragment fragment,
+                                   @NonNull String[] permissions,
+                                   @Nullable ZyPermissionsResultAction action) {
         if (fragment == null) {
             return;
         }
         requestPermissions(fragment.getActivity(), permissions, action);
     }
 
-    private void requestPermissionsFromFragment(FragmentActivity fragmentActivity, String[] permissions) {
+    /**
+     * Same as {@link #requestPermissionsAsync(Activity, String[], Executor, long)} without executor
+     * nor timeout.
+     */
+    @NonNull
+    public ZyPermissionFuture requestPermissionsAsync(@Nullable Activity activity, @NonNull String[] permissions) {
+        return requestPermissionsAsync(activity, permissions, null, 0);
+    }
+
+    /**
+     * Request the permissions like {@link #requestPermissions(Activity, String[], ZyPermissionsResultAction)},
+     * but return a future of the state of every permission instead of calling back onGranted or onDenied.
+     * The future is completed on the thread delivering the last result, and its callbacks run on the
+     * executor, so the result can be chained into background work without going through the main Looper.
+     *
+     * @param activity      the activity necessary to request the permissions
+     * @param permissions   the permissions to request
+     * @param executor      the executor running the callbacks of the future, or null to run them directly
+     * @param timeoutMillis the time after which the future fails with a TimeoutException, 0 to wait forever
+     * @return the future of the result, failed right away when the activity is null
+     */
+    @NonNull
+    public ZyPermissionFuture requestPermissionsAsync(@Nullable Activity activity,
+                                                      @NonNull String[] permissions,
+                                                      @Nullable Executor executor,
+                                                      long timeoutMillis) {
+        final ZyPermissionFuture future = new ZyPermissionFuture(executor);
+        if (activity == null) {
+            future.fail(new IllegalArgumentException("No activity to request the permissions"));
+            return future;
+        }
+        if (permissions.length == 0) {
+            future.complete(new ZyPermissionResult(permissions, new int[0]));
+            return future;
+        }
+        final ZyAsyncResultSink sink = new ZyAsyncResultSink(activity, permissions, future);
+        final Runnable timeout = timeoutMillis > 0 ? new Runnable() {
+            @Override
+            public void run() {
+                future.fail(new TimeoutException("Permission request timed out"));
+            }
+        } : null;
+        //once the future is done, neither the timeout nor the engine may keep the activity alive
+        future.setOnFinish(new Runnable() {
+            @Override
+            public void run() {
+                if (timeout != null) {
+                    mHandler.removeCallbacks(timeout);
+                }
+                mEngine.removeSink(sink);
+            }
+        });
+        if (timeout != null) {
+            mHandler.postDelayed(timeout, timeoutMillis);
+        }
+        registerLifecycleCallbacks(activity);
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+            sink.registerPermissions(permissions);
+            for (String perm : permissions) {
+                sink.onResult(perm, ZyPermissionChecker.STATE_GRANTED);
+            }
+            return future;
+        }
+        mEngine.requestPermissions(activity, permissions, sink);
+        return future;
+    }
+
+    /**
+     * Request the permissions through the compat delegate, skipped without any reflection once the
+     * delegate has found that the hidden API it relies on is not available in this process.
+     *
+     * @return true if the request has been issued
+     */
+    private boolean requestPermissionsFromDelegate(@NonNull Activity activity, @NonNull ZyPermissionRequest request) {
+        if (ZyPermissionCompatDelegate.isBackendUnavailable()) {
+            return false;
+        }
+        ActivityCompat.setPermissionCompatDelegate(mPermissionCompatDelegate);
+        return mPermissionCompatDelegate.requestPermissions(activity, request.permissions, request.requestCode);
+    }
+
+    private void requestPermissionsFromFragment(FragmentActivity fragmentActivity, String[] permissions, int requestCode) {
         ZyPermissionsFragment permissionsFragment = getPermissionsFragment(fragmentActivity.getSupportFragmentManager());
         if (permissionsFragment.isAdded()) {
-            permissionsFragment.requestPermissions(permissions, ZyPermissionConstant.PERMISSIONS_REQUEST_CODE);
+            permissionsFragment.requestPermissions(permissions, requestCode);
         } else {
-            permissionsFragment.setPreRequestPermissions(permissions);
+            permissionsFragment.setPreRequestPermissions(permissions, requestCode);
         }
     }
 
 
+    /**
+     * When enabled, the headless ZyPermissionsFragment is attached to every FragmentActivity when
+     * it starts, so a request falling back to the fragment is issued immediately instead of
+     * waiting for a fragment transaction and the onResume of the new fragment. It is not attached
+     * on create: the fragments of a recreated activity are only restored after
+     * its creation callback, a fragment attached then would duplicate the restored one.
+     * The Activities started before this call are not affected, use
+     * {@link #attachPermissionsFragment(FragmentActivity)} for them.
+     *
+     * @param context any Context of the host application
+     * @param enabled true to attach the fragment when a FragmentActivity starts
+     */
+    public void setAttachFragmentEagerly(@NonNull Context context, boolean enabled) {
+        mAttachFragmentEagerly = enabled;
+        registerLifecycleCallbacks(context);
+    }
+
+    /**
+     * Called by {@link ZyPermissionsLifecycleCallbacks} when an Activity of the host application is created.
+     *
+     * @param activity           the created activity
+     * @param savedInstanceState the saved state of the activity, or null
+     */
+    void onActivityCreated(@NonNull Activity activity, @Nullable Bundle savedInstanceState) {
+        restorePendingRequest(activity, savedInstanceState);
+    }
+
+    /**
+     * Called by {@link ZyPermissionsLifecycleCallbacks} when an Activity of the host application starts,
+     * its restored fragments, if any, are attached by then.
+     *
+     * @param activity the started activity
+     */
+    void onActivityStarted(@NonNull Activity activity) {
+        if (mAttachFragmentEagerly && activity instanceof FragmentActivity) {
+            attachPermissionsFragment((FragmentActivity) activity);
+        }
+    }
+
+    /**
+     * Save the system request the activity is waiting for into its saved state, so the request
+     * survives the recreation of the activity after a configuration change or the death of the
+     * process while the permission dialog is showing, see {@link #restorePendingRequest(Activity, Bundle)}.
+     * It is called automatically once the library has registered its lifecycle callbacks and by
+     * the ZyPermissionsFragment, other activities may call it from onSaveInstanceState.
+     *
+     * @param activity the activity saving its state
+     * @param outState the saved state of the activity
+     */
+    public void savePendingRequest(@NonNull Activity activity, @NonNull Bundle outState) {
+        ZyPermissionRequest request = mEngine.getInFlightRequest(activity);
+        if (request == null) {
+            return;
+        }
+        outState.putInt(STATE_REQUEST_CODE, request.requestCode);
+        outState.putStringArray(STATE_REQUEST_PERMISSIONS, request.permissions);
+    }
+
+    /**
+     * Bind the system request saved by {@link #savePendingRequest(Activity, Bundle)} to the recreated
+     * activity. Its result is then routed by its request code as if the activity had never been
+     * recreated: the actions registered by the previous instance still get it, and the permissions
+     * requested again meanwhile, typically from onCreate, wait for it instead of showing a new dialog.
+     * After the death of the process the library is not initialized when the activity is created,
+     * declare {@link ZyPermissionsInitProvider}, attach the ZyPermissionsFragment, or call this method
+     * from onCreate so the request is restored before it is requested again.
+     *
+     * @param activity           the recreated activity
+     * @param savedInstanceState the saved state of the activity, or null
+     */
+    public void restorePendingRequest(@NonNull Activity activity, @Nullable Bundle savedInstanceState) {
+        if (savedInstanceState == null || !savedInstanceState.containsKey(STATE_REQUEST_CODE)) {
+            return;
+        }
+        String[] permissions = savedInstanceState.getStringArray(STATE_REQUEST_PERMISSIONS);
+        if (permissions == null) {
+            return;
+        }
+        registerLifecycleCallbacks(activity);
+        int requestCode = savedInstanceState.getInt(STATE_REQUEST_CODE);
+        if (!mEngine.restoreRequest(activity, requestCode, permissions)) {
+            Log.w(TAG, "Could not restore the permission request " + requestCode + " " + Arrays.toString(permissions));
+            return;
+        }
+        //a request issued through the compat delegate is answered with onActivityResult, which is only
+        //routed while the delegate is installed, and nothing installed it yet after the death of the process
+        if (!ZyPermissionCompatDelegate.isBackendUnavailable()) {
+            ActivityCompat.setPermissionCompatDelegate(mPermissionCompatDelegate);
+        }
+    }
+
+    /**
+     * Attach the headless ZyPermissionsFragment to the activity ahead of time, typically from its
+     * onCreate, so the requests falling back to the fragment are issued immediately.
+     *
+     * @param fragmentActivity the activity to attach the fragment to
+     */
+    public void attachPermissionsFragment(@NonNull FragmentActivity fragmentActivity) {
+        getPermissionsFragment(fragmentActivity.getSupportFragmentManager());
+    }
+
     private ZyPermissionsFragment getPermissionsFragment(@NonNull final FragmentManager fragmentManager) {
         ZyPermissionsFragment permissionsFragment = findPermissionsFragment(fragmentManager);
         boolean isNewInstance = permissionsFragment == null;
         if (isNewInstance) {
             permissionsFragment = new ZyPermissionsFragment();
-            fragmentManager
+            FragmentTransaction transaction = fragmentManager
                     .beginTransaction()
-                    .add(permissionsFragment, TAG)
-                    .commit();
+                    .add(permissionsFragment, TAG);
+            if (fragmentManager.isStateSaved()) {
+                //commit() throws once the state is saved, the headless fragment has no state to lose
+                //and the request waits in it until its onResume
+                transaction.commitAllowingStateLoss();
+            } else {
+                try {
+                    //add the fragment synchronously so the request does not wait for onResume
+                    transaction.commitNow();
+                } catch (IllegalStateException e) {
+                    //the FragmentManager is executing its transactions, this one will follow
+                    Log.w(TAG, "Could not attach the permissions fragment synchronously", e);
+                    fragmentManager
+                            .beginTransaction()
+                            .add(permissionsFragment, TAG)
+                            .commit();
+                }
+            }
         }
         return permissionsFragment;
     }
@@ -282,36 +891,67 @@ public class ZyPermissions {
      * the {@link Fragment#onRequestPermissionsResult(int, String[], int[])} method.
      * It will notify all the pending ZyPermissionsResultAction objects currently
      * in the queue, and will remove the permissions request from the list of pending requests.
+     * Prefer {@link #notifyPermissionsChange(Context, int, String[], int[])}: without the request code
+     * the result is routed to the request in flight of the activity, or to the first request in flight
+     * asking for the same permissions.
      *
      * @param permissions the permissions that have changed.
      * @param results     the values for each permission.
      */
-    public synchronized void notifyPermissionsChange(Context context, @NonNull String[] permissions, @NonNull int[] results) {
-        int size = permissions.length;
-        if (results.length < size) {
-            size = results.length;
-        }
-        Iterator<ZyPermissionsResultAction> iterator = mPendingActions.iterator();
-        while (iterator.hasNext()) {
-            ZyPermissionsResultAction action = iterator.next();
-            // 保持原逻辑，在第一个拒绝后不在检查下一个权限，但是新增回调，通知权限情况
-            boolean handled = false;
-            for (int n = 0; n < size; n++) {
-                if (action != null) {
-                    action.onRequestPermissionsResult(ZyPermissionConstant.PERMISSIONS_REQUEST_CODE, permissions, results);
-                    if (!handled) {
-                        handled = checkMiPhoneResult(context, action, permissions[n], results[n]);
-                    }
-                }
+    public void notifyPermissionsChange(Context context, @NonNull String[] permissions, @NonNull int[] results) {
+        ZyPermissionRequest request = null;
+        if (context instanceof Activity) {
+            request = mEngine.getInFlightRequest((Activity) context);
+        }
+        if (request == null && permissions.length > 0) {
+            request = mEngine.findRequest(permissions[0]);
+        }
+        if (request == null) {
+            updateStateCache(permissions, results);
+            return;
+        }
+        notifyPermissionsChange(context, request.requestCode, permissions, results);
+    }
+
+    /**
+     * Same as {@link #notifyPermissionsChange(Context, String[], int[])}, the result is routed to the
+     * request which was issued with the request code.
+     *
+     * @param context     the Context used to double check the results.
+     * @param requestCode the request code of the result.
+     * @param permissions the permissions that have changed.
+     * @param results     the values for each permission.
+     * @return true if the request code belongs to a request of the library, false otherwise
+     */
+    public boolean notifyPermissionsChange(Context context, int requestCode, @NonNull String[] permissions, @NonNull int[] results) {
+        if (context != null) {
+            registerLifecycleCallbacks(context);
+        }
+        updateStateCache(permissions, results);
+        if (ZyPermissionConstant.isLibraryRequestCode(requestCode)) {
+            journalResults(context, permissions, results);
+        }
+        if (!mEngine.onRequestResult(requestCode, permissions, results)) {
+            if (ZyPermissionConstant.isLibraryRequestCode(requestCode)) {
+                mMetrics.count(ZyPermissionMetrics.COUNTER_DROPPED);
             }
+            return false;
         }
+        return true;
+    }
+
+    private void updateStateCache(@NonNull String[] permissions, @NonNull int[] results) {
+        int size = Math.min(permissions.length, results.length);
         for (int n = 0; n < size; n++) {
-            mPendingRequests.remove(permissions[n]);
+            int id = ZyPermissionIds.idOf(permissions[n]);
+            mStateCache.put(id, results[n]);
+            mDeltaTracker.update(id, results[n] == PackageManager.PERMISSION_GRANTED);
         }
     }
 
     public boolean CheckIsForbiddenReq(Activity activity, String permissionName)
     {
+        //a rationale means the permission can be asked again, whatever the journal still says
         return !ActivityCompat.shouldShowRequestPermissionRationale(activity, permissionName);
     }
 
@@ -327,9 +967,12 @@ public class ZyPermissions {
     private void doPermissionWorkBeforeAndroidM(@NonNull Activity activity,
                                                 @NonNull String[] permissions,
                                                 @Nullable ZyPermissionsResultAction action) {
+        if (action != null) {
+            action.registerPermissions(permissions);
+        }
         for (String perm : permissions) {
             if (action != null) {
-//                if (!mPermissions.contains(perm)) {
+//                if (!ZyPermissionRegistry.isAvailable(perm)) {
 //                    action.onResult(perm, ZyPermissionsEnum.NOT_FOUND);
 //                } else if (ActivityCompat.checkSelfPermission(activity, perm)
 //                        != PackageManager.PERMISSION_GRANTED) {
@@ -341,97 +984,186 @@ public class ZyPermissions {
         }
     }
 
+    private boolean isForbiddenInJournal(@NonNull String permission) {
+        if (!mForbiddenFastFailEnabled) {
+            return false;
+        }
+        ZyPermissionJournal journal = getJournal();
+        return journal != null && journal.isForbidden(permission);
+    }
+
     /**
-     * Filter the permissions list:
-     * If a permission is not granted, add it to the result list
-     * if a permission is granted, do the granted work, do not add it to the result list
-     *
-     * @param activity    the activity to check permissions
-     * @param permissions all the permissions names
-     * @param action      the callback work object, containing what we what to do after
-     *                    permission check
-     * @return a list of permissions names that are not granted yet
+     * @return true if the request of the permission fails fast, false for the first request of a
+     * forbidden permission in this process, which goes to the system to re-journal the permission
      */
-    @NonNull
-    private List<String> getPermissionsListToRequest(@NonNull Activity activity,
-                                                     @NonNull String[] permissions,
-                                                     @Nullable ZyPermissionsResultAction action) {
-        List<String> permList = new ArrayList<String>(permissions.length);
-        for (String perm : permissions) {
-            if (!mPermissions.contains(perm)) {
-                if (action != null) {
-                    action.onResult(perm, ZyPermissionsEnum.NOT_FOUND);
-                }
-            } else if (checkSelfPermission(activity, perm) != PackageManager.PERMISSION_GRANTED) {
-                if (!mPendingRequests.contains(perm)) {
-                    permList.add(perm);
-                }
-            } else {
-                if (action != null) {
-                    action.onResult(perm, ZyPermissionsEnum.GRANTED);
-                }
+    private boolean shouldFailFast(@NonNull String permission) {
+        if (!isForbiddenInJournal(permission)) {
+            return false;
+        }
+        int id = ZyPermissionIds.idOf(permission);
+        synchronized (mForbiddenProbes) {
+            if (mForbiddenProbes.get(id)) {
+                return true;
             }
+            mForbiddenProbes.set(id);
+            return false;
         }
-        return permList;
     }
 
-    private boolean checkMiPhoneResult(Context context, ZyPermissionsResultAction action, String permission, int result) {
-        if (checkSelfPermission(context, permission) == PackageManager.PERMISSION_GRANTED) {
-            return action.onResult(permission, ZyPermissionsEnum.GRANTED);
-        } else {
-            return action.onResult(permission, ZyPermissionsEnum.DENIED);
+    /**
+     * Check the permission state, answering from the grant-state cache when useCache is true
+     * and the permission has already been checked since the last Activity resume.
+     *
+     * @param context
+     * @param permission
+     * @param useCache   true to answer from the grant-state cache when possible
+     * @return
+     */
+    private int checkSelfPermission(Context context, String permission, boolean useCache) {
+        if (context == null) {
+            return PackageManager.PERMISSION_DENIED;
         }
+        registerLifecycleCallbacks(context);
+        return checkSelfPermission(context, permission, ZyPermissionIds.idOf(permission), useCache);
     }
 
-    private List<String> LocationPermissions = Arrays.asList(
-            Manifest.permission.ACCESS_FINE_LOCATION,
-            Manifest.permission.ACCESS_COARSE_LOCATION);
-
+    /**
+     * Same as {@link #checkSelfPermission(Context, String, boolean)} with the interned id of the
+     * permission, a cache hit does not allocate.
+     */
+    private int checkSelfPermission(@NonNull Context context, String permission, int id, boolean useCache) {
+        if (useCache) {
+            Integer cachedState = mStateCache.get(id);
+            if (cachedState != null) {
+                mMetrics.count(ZyPermissionMetrics.COUNTER_CACHE_HIT);
+                return cachedState;
+            }
+        }
+        mMetrics.count(ZyPermissionMetrics.COUNTER_CACHE_MISS);
+        long checkStart = System.nanoTime();
+        int permissionState = checkSelfPermission(context, permission, id);
+        mMetrics.recordSince(ZyPermissionMetrics.TIMING_STATE_CHECK, checkStart);
+        if (mStateCacheEnabled) {
+            mStateCache.put(id, permissionState);
+        }
+        mDeltaTracker.trackIfAbsent(id, permissionState == PackageManager.PERMISSION_GRANTED);
+        return permissionState;
+    }
 
     /**
-     * XiaoMi phone's permission Manager is special，try using AppOpsManager to judge whether its permission has been granted
-     * this method is just for permission-group : phone & location.
-     * for other phones and all sdk-ver < M ,use ActivityCompat.checkSelfPermission is Ok
+     * Some ROMs, e.g. XiaoMi, keep their own permission state which the platform does not report,
+     * the check strategy resolved for this device and permission, if any, refines the platform state.
      *
      * @param context
      * @param permission
+     * @param id         the interned id of the permission
      * @return
      */
-    private int checkSelfPermission(Context context, String permission) {
-        if (context == null) {
-            return PackageManager.PERMISSION_DENIED;
-        }
+    private int checkSelfPermission(Context context, String permission, int id) {
         int permissionState = ActivityCompat.checkSelfPermission(context, permission);
-        if (permissionState != PackageManager.PERMISSION_GRANTED) {
-            return permissionState;
+        ZyPermissionCheckStrategy strategy = mCheckStrategies.get(id);
+        return strategy == null ? permissionState : strategy.checkPermission(context, permission, permissionState);
+    }
+
+    /**
+     * Answers the checks of the engine with the grant-state cache and the system, see
+     * {@link #checkSelfPermission(Context, String, boolean)}.
+     */
+    private final class StateChecker implements ZyPermissionChecker {
+        @Override
+        public int checkPermission(String permission) {
+            if (!ZyPermissionRegistry.isAvailable(permission)) {
+                return STATE_NOT_FOUND;
+            }
+            if (checkSelfPermission(mApplicationContext, permission, mStateCacheEnabled)
+                    == PackageManager.PERMISSION_GRANTED) {
+                return STATE_GRANTED;
+            }
+            if (!mManifestPermissions.isDeclared(mApplicationContext, permission)) {
+                return STATE_UNDECLARED;
+            }
+            return shouldFailFast(permission) ? STATE_FORBIDDEN : STATE_DENIED;
         }
 
-        if (android.os.Build.VERSION.SDK_INT < android.os.Build.VERSION_CODES.M) {
-            return ActivityCompat.checkSelfPermission(context, permission);
+        @Override
+        public int verifyResult(String permission, int grantResult) {
+            //the result reported by some ROMs, e.g. XiaoMi, can not be trusted, ask the system again
+            return checkSelfPermission(mApplicationContext, permission, false)
+                    == PackageManager.PERMISSION_GRANTED ? STATE_GRANTED : STATE_DENIED;
         }
-        String op = "";
-        if (Manifest.permission.READ_PHONE_STATE.equals(permission)) {
-            op = AppOpsManager.OPSTR_READ_PHONE_STATE;
+    }
+
+    /**
+     * Issues the system requests through the compat delegate, the headless fragment or ActivityCompat.
+     */
+    private final class ActivityRequestBackend implements ZyRequestBackend<Activity> {
+        @Override
+        public boolean canRequest(Activity activity) {
+            return !activity.isFinishing();
         }
-        if (LocationPermissions.contains(permission)) {
-            op = AppOpsManager.OPSTR_FINE_LOCATION;
+
+        @Override
+        public void requestPermissions(Activity activity, ZyPermissionRequest request) {
+            ZyPermissionJournal journal = getJournal();
+            if (journal != null) {
+                for (String perm : request.permissions) {
+                    journal.append(perm, ZyPermissionJournal.RECORD_REQUESTED);
+                }
+            }
+            if (!requestPermissionsFromDelegate(activity, request)) {
+                if (activity instanceof FragmentActivity) {
+                    requestPermissionsFromFragment((FragmentActivity) activity, request.permissions, request.requestCode);
+                } else {
+                    ActivityCompat.requestPermissions(activity, request.permissions, request.requestCode);
+                }
+            }
+            mMetrics.recordSince(ZyPermissionMetrics.TIMING_BACKEND_DISPATCH, request.getDispatchedAtNanos());
         }
-        if (TextUtils.isEmpty(op)) {
-            return ActivityCompat.checkSelfPermission(context, permission);
+    }
+
+    private final class MainLooperExecutor implements ZyCallbackExecutor {
+        @Override
+        public void executeDelayed(Runnable runnable, long delayMillis) {
+            mHandler.postDelayed(runnable, delayMillis);
+        }
+    }
+
+    private final class MetricsListener implements ZyEngineListener {
+        @Override
+        public void onLockWait(long waitNanos) {
+            mMetrics.recordTiming(ZyPermissionMetrics.TIMING_LOCK_WAIT, waitNanos);
+        }
+
+        @Override
+        public void onSystemRequest(ZyPermissionRequest request) {
+            mMetrics.count(ZyPermissionMetrics.COUNTER_SYSTEM_REQUEST);
+        }
+
+        @Override
+        public void onResultReceived(ZyPermissionRequest request) {
+            mMetrics.recordSince(ZyPermissionMetrics.TIMING_RESULT_RECEIVED, request.getDispatchedAtNanos());
         }
-        try {
-            AppOpsManager ops = context.getSystemService(AppOpsManager.class);
-            int mode = ops.checkOp(op, Process.myUid(), context.getPackageName());
-            Log.d(TAG, "mode = " + mode);
-            if (mode == AppOpsManager.MODE_ALLOWED) {
-                //Accurate judgment for xiaomi
-                return PackageManager.PERMISSION_GRANTED;
+
+        @Override
+        public void onPermissionResult(String permission, int state) {
+            if (state == ZyPermissionChecker.STATE_GRANTED) {
+                mMetrics.count(ZyPermissionMetrics.COUNTER_GRANTED);
+            } else if (state == ZyPermissionChecker.STATE_FORBIDDEN) {
+                mMetrics.count(ZyPermissionMetrics.COUNTER_FORBIDDEN);
+            } else if (state == ZyPermissionChecker.STATE_TIMEOUT) {
+                mMetrics.count(ZyPermissionMetrics.COUNTER_TIMEOUT);
+            } else if (state == ZyPermissionChecker.STATE_UNDECLARED) {
+                mMetrics.count(ZyPermissionMetrics.COUNTER_UNDECLARED);
+            } else if (state == ZyPermissionChecker.STATE_NOT_FOUND) {
+                mMetrics.count(ZyPermissionMetrics.COUNTER_NOT_FOUND);
             } else {
-                return PackageManager.PERMISSION_DENIED;
+                mMetrics.count(ZyPermissionMetrics.COUNTER_DENIED);
             }
-        } catch (Exception e) {
         }
-        return ActivityCompat.checkSelfPermission(context, permission);
 
+        @Override
+        public void onRequestCodesExhausted() {
+            Log.e(TAG, "All the reserved request codes are in use");
+        }
     }
 }
@@ -0,0 +1,98 @@
+package com.zy.dynamicpermissionlib;
+
+import android.app.Activity;
+
+import androidx.annotation.NonNull;
+
+import java.lang.ref.WeakReference;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Collects the result of every permission of a batch request and delivers them at once,
+ * as a single payload, when the last permission has been answered.
+ * The payload lists each permission with its state, e.g.
+ * "android.permission.CAMERA:granted;android.permission.RECORD_AUDIO:forbidden".
+ */
+abstract class ZyPermissionsBatchResultAction extends ZyPermissionsResultAction {
+
+    static final String STATE_GRANTED = "granted";
+    static final String STATE_DENIED = "denied";
+    static final String STATE_FORBIDDEN = "forbidden";
+    static final String STATE_NOT_FOUND = "not_found";
+    static final String STATE_TIMEOUT = "timeout";
+    static final String STATE_UNDECLARED = "undeclared";
+
+    static final char PERMISSION_SEPARATOR = ';';
+    static final char STATE_SEPARATOR = ':';
+
+    //weak: the action waits in the session of the activity, it must not keep the activity alive
+    private final WeakReference<Activity> mActivity;
+    private final String[] mRequested;
+    private final Map<String, String> mStates;
+    private boolean mDelivered = false;
+
+    /**
+     * @param activity    the activity used to tell denied permissions from forbidden ones
+     * @param permissions the distinct permissions of the batch
+     */
+    ZyPermissionsBatchResultAction(@NonNull Activity activity, @NonNull String[] permissions) {
+        mActivity = new WeakReference<Activity>(activity);
+        mRequested = permissions;
+        mStates = new LinkedHashMap<String, String>(permissions.length);
+    }
+
+    /**
+     * Called once, when every permission of the batch has a state.
+     *
+     * @param payload the aggregated result of the batch
+     */
+    abstract void onBatchResult(@NonNull String payload);
+
+    @Override
+    public void onGranted() {
+    }
+
+    @Override
+    public void onDenied(String permission) {
+    }
+
+    @Override
+    void onPermissionResult(@NonNull String permission, ZyPermissionsEnum result, boolean answered) {
+        if (mDelivered || mStates.containsKey(permission)) {
+            return;
+        }
+        String state;
+        if (result == ZyPermissionsEnum.GRANTED) {
+            state = STATE_GRANTED;
+        } else if (result == ZyPermissionsEnum.NOT_FOUND) {
+            state = STATE_NOT_FOUND;
+        } else if (result == ZyPermissionsEnum.TIMEOUT) {
+            state = STATE_TIMEOUT;
+        } else if (result == ZyPermissionsEnum.UNDECLARED) {
+            state = STATE_UNDECLARED;
+        } else if (answered && isForbidden(permission)) {
+            state = STATE_FORBIDDEN;
+        } else {
+            state = STATE_DENIED;
+        }
+        mStates.put(permission, state);
+        if (mStates.size() < mRequested.length) {
+            return;
+        }
+        mDelivered = true;
+        StringBuilder payload = new StringBuilder();
+        for (String requested : mRequested) {
+            if (payload.length() > 0) {
+                payload.append(PERMISSION_SEPARATOR);
+            }
+            payload.append(requested).append(STATE_SEPARATOR).append(mStates.get(requested));
+        }
+        onBatchResult(payload.toString());
+    }
+
+    private boolean isForbidden(@NonNull String permission) {
+        Activity activity = mActivity.get();
+        return activity != null && ZyPermissions.getInstance().CheckIsForbiddenReq(activity, permission);
+    }
+}
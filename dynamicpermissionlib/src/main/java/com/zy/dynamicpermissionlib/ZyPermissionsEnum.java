@@ -8,5 +8,13 @@ package com.zy.dynamicpermissionlib;
 enum ZyPermissionsEnum {
     GRANTED,
     DENIED,
-    NOT_FOUND
+    NOT_FOUND,
+    /**
+     * The request got no result in time, see {@link ZyPermissions#setRequestTimeToLive(long)}.
+     */
+    TIMEOUT,
+    /**
+     * The permission is not declared in the manifest of the application.
+     */
+    UNDECLARED
 }
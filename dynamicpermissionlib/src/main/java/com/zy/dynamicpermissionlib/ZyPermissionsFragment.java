@@ -27,6 +27,7 @@ public class ZyPermissionsFragment extends Fragment {
     private static final String TAG = "PermissionsFragment";
 
     private String[] preRequestPermissions = null;
+    private int preRequestCode = ZyPermissionConstant.PERMISSIONS_REQUEST_CODE;
 
     public ZyPermissionsFragment() {
     }
@@ -35,25 +36,42 @@ public class ZyPermissionsFragment extends Fragment {
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setRetainInstance(true);
+        //restored with its activity after the death of the process, before the library is initialized
+        if (savedInstanceState != null && getActivity() != null) {
+            ZyPermissions.getInstance().restorePendingRequest(getActivity(), savedInstanceState);
+        }
+    }
+
+    @Override
+    public void onSaveInstanceState(@NonNull Bundle outState) {
+        super.onSaveInstanceState(outState);
+        if (getActivity() != null) {
+            ZyPermissions.getInstance().savePendingRequest(getActivity(), outState);
+        }
     }
 
     @TargetApi(Build.VERSION_CODES.M)
     public void onRequestPermissionsResult(int requestCode, @NonNull String[] permissions, @NonNull int[] grantResults) {
         super.onRequestPermissionsResult(requestCode, permissions, grantResults);
 
-        ZyPermissions.getInstance().notifyPermissionsChange(getContext(), permissions, grantResults);
+        ZyPermissions.getInstance().notifyPermissionsChange(getContext(), requestCode, permissions, grantResults);
     }
 
     @Override
     public void onResume() {
         super.onResume();
         if (preRequestPermissions != null) {
-            requestPermissions(preRequestPermissions, ZyPermissionConstant.PERMISSIONS_REQUEST_CODE);
+            requestPermissions(preRequestPermissions, preRequestCode);
         }
         preRequestPermissions = null;
     }
 
     public void setPreRequestPermissions(String[] preRequestPermissions) {
+        setPreRequestPermissions(preRequestPermissions, ZyPermissionConstant.PERMISSIONS_REQUEST_CODE);
+    }
+
+    public void setPreRequestPermissions(String[] preRequestPermissions, int requestCode) {
         this.preRequestPermissions = preRequestPermissions;
+        this.preRequestCode = requestCode;
     }
 }
@@ -0,0 +1,62 @@
+package com.zy.dynamicpermissionlib;
+
+import android.content.ContentProvider;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Starts {@link ZyPermissions#warmUp(android.content.Context, String[])} at process start, before
+ * Application.onCreate, prefetching the permissions requested in the manifest. It is opt-in,
+ * declare it in the manifest of the application to enable it:
+ * <pre>
+ * &lt;provider
+ *     android:name="com.zy.dynamicpermissionlib.ZyPermissionsInitProvider"
+ *     android:authorities="${applicationId}.zypermissions-init"
+ *     android:exported="false" /&gt;
+ * </pre>
+ * It does not serve any data.
+ */
+public class ZyPermissionsInitProvider extends ContentProvider {
+
+    @Override
+    public boolean onCreate() {
+        if (getContext() != null) {
+            ZyPermissions.getInstance().warmUp(getContext(), null);
+        }
+        return true;
+    }
+
+    @Nullable
+    @Override
+    public Cursor query(@NonNull Uri uri, @Nullable String[] projection, @Nullable String selection,
+                        @Nullable String[] selectionArgs, @Nullable String sortOrder) {
+        return null;
+    }
+
+    @Nullable
+    @Override
+    public String getType(@NonNull Uri uri) {
+        return null;
+    }
+
+    @Nullable
+    @Override
+    public Uri insert(@NonNull Uri uri, @Nullable ContentValues values) {
+        return null;
+    }
+
+    @Override
+    public int delete(@NonNull Uri uri, @Nullable String selection, @Nullable String[] selectionArgs) {
+        return 0;
+    }
+
+    @Override
+    public int update(@NonNull Uri uri, @Nullable ContentValues values, @Nullable String selection,
+                      @Nullable String[] selectionArgs) {
+        return 0;
+    }
+}
@@ -0,0 +1,49 @@
+package com.zy.dynamicpermissionlib;
+
+import android.app.Activity;
+import android.app.Application;
+import android.os.Bundle;
+
+/**
+ * Observes the Activities of the host application so that ZyPermissions can
+ * react to lifecycle changes, e.g. drop the cached grant states when an Activity
+ * resumes since the user may have changed the permissions in the system Settings, or forget
+ * the request session of a destroyed Activity, or save the request in flight of an Activity
+ * and restore it when the Activity is recreated.
+ */
+class ZyPermissionsLifecycleCallbacks implements Application.ActivityLifecycleCallbacks {
+
+    @Override
+    public void onActivityCreated(Activity activity, Bundle savedInstanceState) {
+        ZyPermissions.getInstance().onActivityCreated(activity, savedInstanceState);
+    }
+
+    @Override
+    public void onActivityStarted(Activity activity) {
+        ZyPermissions.getInstance().onActivityStarted(activity);
+    }
+
+    @Override
+    public void onActivityResumed(Activity activity) {
+        ZyPermissions.getInstance().onActivityResumed(activity);
+    }
+
+    @Override
+    public void onActivityPaused(Activity activity) {
+        ZyPermissions.getInstance().onActivityPaused(activity);
+    }
+
+    @Override
+    public void onActivityStopped(Activity activity) {
+    }
+
+    @Override
+    public void onActivitySaveInstanceState(Activity activity, Bundle outState) {
+        ZyPermissions.getInstance().savePendingRequest(activity, outState);
+    }
+
+    @Override
+    public void onActivityDestroyed(Activity activity) {
+        ZyPermissions.getInstance().onActivityDestroyed(activity);
+    }
+}
@@ -1,16 +1,14 @@
 package com.zy.dynamicpermissionlib;
 
 import android.content.pm.PackageManager;
-import android.os.Handler;
 import android.os.Looper;
 import android.util.Log;
 
 import androidx.annotation.CallSuper;
 import androidx.annotation.NonNull;
 
-import java.util.Collections;
-import java.util.HashSet;
-import java.util.Set;
+import com.zy.dynamicpermissionlib.core.ZyPermissionBits;
+
 
 /**
  * This abstract class should be used to create an if/else action that the PermissionsManager
@@ -24,8 +22,11 @@ import java.util.Set;
 public abstract class ZyPermissionsResultAction {
 
     private static final String TAG = ZyPermissionsResultAction.class.getSimpleName();
-    private final Set<String> mPermissions = new HashSet<String>(1);
+    private final ZyPermissionBits mPermissions = ZyPermissionIds.newBits();
     private Looper mLooper = Looper.getMainLooper();
+    private boolean mFinished = false;
+
+    private static final int NO_CALLBACK = -1;
 
     /**
      * Default Constructor
@@ -71,6 +72,31 @@ public abstract class ZyPermissionsResultAction {
      */
     public abstract void onDenied(String permission);
 
+    /**
+     * This method is called instead of onDenied when the request of a
+     * permission got no result within the time-to-live set with
+     * {@link ZyPermissions#setRequestTimeToLive(long)}, e.g. because the
+     * Activity showing the dialog was destroyed. By default the permission
+     * is simply treated as denied.
+     *
+     * @param permission the permission that timed out.
+     */
+    public void onTimeout(String permission) {
+        onDenied(permission);
+    }
+
+    /**
+     * This method is called instead of onDenied when the AndroidManifest.xml
+     * of the application does not declare the permission: the system would
+     * deny it without showing any dialog, so it was not requested. It is not
+     * forbidden by the user. By default the permission is simply treated as denied.
+     *
+     * @param permission the permission that is not declared.
+     */
+    public void onUndeclared(String permission) {
+        onDenied(permission);
+    }
+
     /**
      * This method is used to determine if a permission not
      * being present on the current Android platform should
@@ -98,7 +124,7 @@ public abstract class ZyPermissionsResultAction {
 
     @SuppressWarnings("WeakerAccess")
     @CallSuper
-    protected synchronized final boolean onResult(final @NonNull String permission, int result) {
+    protected final boolean onResult(final @NonNull String permission, int result) {
         if (result == PackageManager.PERMISSION_GRANTED) {
             return onResult(permission, ZyPermissionsEnum.GRANTED);
         } else {
@@ -112,6 +138,8 @@ public abstract class ZyPermissionsResultAction {
      * This method will be called for all permissions, so this method determines
      * if the permission affects the state or not and whether it can proceed with
      * calling onGranted or if onDenied should be called.
+     * The callback is invoked directly when the caller already runs on the Looper of
+     * this action, otherwise it is posted to that Looper.
      *
      * @param permission the permission that changed.
      * @param result     the result for that permission.
@@ -120,60 +148,98 @@ public abstract class ZyPermissionsResultAction {
      */
     @SuppressWarnings("WeakerAccess")
     @CallSuper
-    protected synchronized final boolean onResult(final @NonNull String permission, ZyPermissionsEnum result) {
-        mPermissions.remove(permission);
+    protected final boolean onResult(final @NonNull String permission, ZyPermissionsEnum result) {
+        return onResult(permission, result, true);
+    }
+
+    /**
+     * @param answered false if the permission was denied without the user being asked, e.g. its
+     *                 Activity was destroyed before the system request, so it can not be forbidden
+     */
+    final boolean onResult(final @NonNull String permission, ZyPermissionsEnum result, boolean answered) {
+        int callback;
+        synchronized (this) {
+            onPermissionResult(permission, result, answered);
+            mPermissions.clear(ZyPermissionIds.idOf(permission));
+            if (mFinished) {
+                // onGranted or onDenied has already been dispatched
+                return true;
+            }
+            callback = getCallback(permission, result);
+            if (callback == NO_CALLBACK) {
+                return false;
+            }
+            mFinished = true;
+        }
+        // the callback runs outside of the lock, it may be invoked directly
+        ZyCallbackDispatcher.dispatch(mLooper, this, callback, permission);
+        return true;
+    }
+
+    private int getCallback(@NonNull String permission, ZyPermissionsEnum result) {
         if (result == ZyPermissionsEnum.GRANTED) {
             if (mPermissions.isEmpty()) {
-                new Handler(mLooper).post(new Runnable() {
-                    @Override
-                    public void run() {
-                        onGranted();
-                    }
-                });
-                return true;
+                return ZyCallbackDispatcher.CALLBACK_GRANTED;
             }
         } else if (result == ZyPermissionsEnum.DENIED) {
-            new Handler(mLooper).post(new Runnable() {
-                @Override
-                public void run() {
-                    onDenied(permission);
-                }
-            });
-            return true;
+            return ZyCallbackDispatcher.CALLBACK_DENIED;
+        } else if (result == ZyPermissionsEnum.UNDECLARED) {
+            return ZyCallbackDispatcher.CALLBACK_UNDECLARED;
+        } else if (result == ZyPermissionsEnum.TIMEOUT) {
+            return ZyCallbackDispatcher.CALLBACK_TIMEOUT;
         } else if (result == ZyPermissionsEnum.NOT_FOUND) {
             if (shouldIgnorePermissionNotFound(permission)) {
                 if (mPermissions.isEmpty()) {
-                    new Handler(mLooper).post(new Runnable() {
-                        @Override
-                        public void run() {
-                            onGranted();
-                        }
-                    });
-                    return true;
+                    return ZyCallbackDispatcher.CALLBACK_GRANTED;
                 }
             } else {
-                new Handler(mLooper).post(new Runnable() {
-                    @Override
-                    public void run() {
-                        onDenied(permission);
-                    }
-                });
-                return true;
+                return ZyCallbackDispatcher.CALLBACK_DENIED;
             }
         }
-        return false;
+        return NO_CALLBACK;
+    }
+
+    /**
+     * Called for every permission result reported to this action, including the ones
+     * received after onGranted or onDenied has been dispatched, so subclasses inside the
+     * library can collect the state of each requested permission.
+     *
+     * @param permission the permission that changed.
+     * @param result     the result for that permission.
+     * @param answered   false if the permission was denied without the user being asked
+     */
+    void onPermissionResult(@NonNull String permission, ZyPermissionsEnum result, boolean answered) {
+    }
+
+    /**
+     * @param permission the permission to look up
+     * @return true if this action still waits for the result of the permission
+     */
+    synchronized boolean isWaitingFor(@NonNull String permission) {
+        return mPermissions.get(ZyPermissionIds.idOf(permission));
+    }
+
+    /**
+     * @return true if this action still waits for the result of at least one permission
+     */
+    synchronized boolean isWaiting() {
+        return !mPermissions.isEmpty();
     }
 
     /**
      * This method registers the ZyPermissionsResultAction object for the specified permissions
      * so that it will know which permissions to look for changes to. The ZyPermissionsResultAction
-     * will then know to look out for changes to these permissions.
+     * will then know to look out for changes to these permissions. Each call starts a new request,
+     * so an action reused after onGranted or onDenied is called back again.
      *
      * @param perms the permissions to listen for
      */
     @SuppressWarnings("WeakerAccess")
     @CallSuper
     protected synchronized final void registerPermissions(@NonNull String[] perms) {
-        Collections.addAll(mPermissions, perms);
+        mFinished = false;
+        for (String perm : perms) {
+            mPermissions.set(ZyPermissionIds.idOf(perm));
+        }
     }
 }
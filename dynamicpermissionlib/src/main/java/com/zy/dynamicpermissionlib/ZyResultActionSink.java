@@ -0,0 +1,56 @@
+package com.zy.dynamicpermissionlib;
+
+import com.zy.dynamicpermissionlib.core.ZyPermissionChecker;
+import com.zy.dynamicpermissionlib.core.ZyResultSink;
+
+/**
+ * Adapts a {@link ZyPermissionsResultAction} to the {@link ZyResultSink} of the engine core.
+ */
+final class ZyResultActionSink implements ZyResultSink {
+
+    private final ZyPermissionsResultAction mAction;
+
+    ZyResultActionSink(ZyPermissionsResultAction action) {
+        mAction = action;
+    }
+
+    @Override
+    public void registerPermissions(String[] permissions) {
+        mAction.registerPermissions(permissions);
+    }
+
+    @Override
+    public boolean isWaitingFor(String permission) {
+        return mAction.isWaitingFor(permission);
+    }
+
+    @Override
+    public boolean isWaiting() {
+        return mAction.isWaiting();
+    }
+
+    @Override
+    public void onRequestPermissionsResult(int requestCode, String[] permissions, int[] grantResults) {
+        mAction.onRequestPermissionsResult(requestCode, permissions, grantResults);
+    }
+
+    @Override
+    public void onResult(String permission, int state) {
+        mAction.onResult(permission, toEnum(state), state != ZyPermissionChecker.STATE_CANCELED);
+    }
+
+    static ZyPermissionsEnum toEnum(int state) {
+        if (state == ZyPermissionChecker.STATE_GRANTED) {
+            return ZyPermissionsEnum.GRANTED;
+        } else if (state == ZyPermissionChecker.STATE_NOT_FOUND) {
+            return ZyPermissionsEnum.NOT_FOUND;
+        } else if (state == ZyPermissionChecker.STATE_TIMEOUT) {
+            return ZyPermissionsEnum.TIMEOUT;
+        } else if (state == ZyPermissionChecker.STATE_UNDECLARED) {
+            return ZyPermissionsEnum.UNDECLARED;
+        }
+        //a forbidden or canceled permission is a denial for the action, CheckIsForbiddenReq tells
+        //the forbidden ones apart
+        return ZyPermissionsEnum.DENIED;
+    }
+}
@@ -0,0 +1,259 @@
+package com.zy.dynamicpermissionlib;
+
+import android.app.Activity;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Bridge to com.unity3d.player.UnityPlayer. The UnityPlayer class, its currentActivity field and
+ * its UnitySendMessage method are resolved once, the first time they are needed, and a failed
+ * resolution is logged instead of being swallowed. Once resolved, the handles are read without locking.
+ * By default every message is sent right away on the calling thread. When a batch function is set,
+ * the messages are queued instead and flushed once per main Looper tick, the messages of a tick
+ * addressed to the same GameObject being joined into one UnitySendMessage.
+ */
+final class ZyUnityBridge {
+
+    private static final String TAG = "ZyUnityBridge";
+
+    private static final String UNITY_PLAYER_CLASS = "com.unity3d.player.UnityPlayer";
+
+    /**
+     * Separates the function name from its argument in a batched message line.
+     */
+    static final char BATCH_FIELD_SEPARATOR = '\t';
+
+    /**
+     * Separates the lines of a batched message.
+     */
+    static final char BATCH_LINE_SEPARATOR = '\n';
+
+    /**
+     * Escapes the separators and itself in the fields of a batched message line.
+     */
+    static final char BATCH_ESCAPE = '\\';
+
+    private final ConcurrentLinkedQueue<UnityMessage> mQueue = new ConcurrentLinkedQueue<UnityMessage>();
+    private final AtomicBoolean mFlushScheduled = new AtomicBoolean(false);
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    private volatile UnityHandles mHandles = null;
+
+    private volatile String mBatchFunction = null;
+
+    private static class UnityBridgeHolder {
+        private static final ZyUnityBridge INSTANCE = new ZyUnityBridge();
+    }
+
+    private ZyUnityBridge() {
+    }
+
+    static ZyUnityBridge getInstance() {
+        return UnityBridgeHolder.INSTANCE;
+    }
+
+    /**
+     * Resolve the UnityPlayer handles, only the first call does the reflection work.
+     *
+     * @return true if UnitySendMessage can be called
+     */
+    boolean resolve() {
+        return getHandles().sendMessageMethod != null;
+    }
+
+    @NonNull
+    private UnityHandles getHandles() {
+        UnityHandles handles = mHandles;
+        if (handles == null) {
+            synchronized (this) {
+                handles = mHandles;
+                if (handles == null) {
+                    handles = resolveHandles();
+                    mHandles = handles;
+                }
+            }
+        }
+        return handles;
+    }
+
+    @NonNull
+    private static UnityHandles resolveHandles() {
+        Class<?> unityPlayerClass;
+        try {
+            unityPlayerClass = Class.forName(UNITY_PLAYER_CLASS);
+        } catch (ClassNotFoundException e) {
+            //expected in the applications which do not embed Unity, the warm-up resolves the handles too
+            Log.d(TAG, UNITY_PLAYER_CLASS + " not found, messages to Unity will be dropped");
+            return new UnityHandles(null, null);
+        }
+        Field currentActivityField = null;
+        try {
+            currentActivityField = unityPlayerClass.getDeclaredField("currentActivity");
+        } catch (NoSuchFieldException e) {
+            Log.e(TAG, "UnityPlayer.currentActivity not found", e);
+        }
+        Method sendMessageMethod = null;
+        try {
+            sendMessageMethod = unityPlayerClass.getMethod("UnitySendMessage", String.class, String.class, String.class);
+        } catch (NoSuchMethodException e) {
+            Log.e(TAG, "UnityPlayer.UnitySendMessage not found, messages to Unity will be dropped", e);
+        }
+        return new UnityHandles(currentActivityField, sendMessageMethod);
+    }
+
+    /**
+     * @return the current Activity of the Unity player, or null if it is not available
+     */
+    @Nullable
+    Activity getCurrentActivity() {
+        Field currentActivityField = getHandles().currentActivityField;
+        if (currentActivityField == null) {
+            return null;
+        }
+        try {
+            return (Activity) currentActivityField.get(null);
+        } catch (IllegalAccessException e) {
+            Log.e(TAG, "Could not access UnityPlayer.currentActivity", e);
+        }
+        return null;
+    }
+
+    /**
+     * Set the Unity function receiving the batched messages. When it is set, the messages of a tick
+     * addressed to the same GameObject are sent with a single UnitySendMessage to this function,
+     * one message per line, each line being the function name and the argument separated by a tab.
+     * In both fields a backslash, a tab and a line feed are escaped as the two characters
+     * {@code \\}, {@code \t} and {@code \n}: the payload is split on the raw line feeds, each line on
+     * its raw tab, then each field is unescaped.
+     * When it is null, which is the default, every message is sent right away to its own function.
+     *
+     * @param functionName the name of the batch function, or null to disable batching
+     */
+    void setBatchFunction(@Nullable String functionName) {
+        mBatchFunction = functionName;
+    }
+
+    /**
+     * Send a message to Unity, or queue it for the next flush on the main Looper when batching is on.
+     *
+     * @param gameObjectName the name of the GameObject
+     * @param functionName   the name of the function
+     * @param args           the argument
+     * @return false if UnitySendMessage is not available and the message is dropped
+     */
+    boolean sendMessage(@NonNull String gameObjectName, @NonNull String functionName, @Nullable String args) {
+        Method sendMessageMethod = getHandles().sendMessageMethod;
+        if (sendMessageMethod == null) {
+            ZyPermissions.getInstance().getMetrics().count(ZyPermissionMetrics.COUNTER_DROPPED);
+            return false;
+        }
+        //the messages still queued since batching was turned off go first
+        if (mBatchFunction == null && mQueue.isEmpty()) {
+            invoke(sendMessageMethod, gameObjectName, functionName, args == null ? "" : args);
+            return true;
+        }
+        mQueue.offer(new UnityMessage(gameObjectName, functionName, args == null ? "" : args));
+        if (mFlushScheduled.compareAndSet(false, true)) {
+            mHandler.post(mFlushRunnable);
+        }
+        return true;
+    }
+
+    private void flush() {
+        mFlushScheduled.set(false);
+        Method sendMessageMethod = getHandles().sendMessageMethod;
+        String batchFunction = mBatchFunction;
+        if (batchFunction == null) {
+            UnityMessage message;
+            while ((message = mQueue.poll()) != null) {
+                invoke(sendMessageMethod, message.gameObjectName, message.functionName, message.args);
+            }
+            return;
+        }
+        Map<String, StringBuilder> batches = new LinkedHashMap<String, StringBuilder>();
+        UnityMessage message;
+        while ((message = mQueue.poll()) != null) {
+            StringBuilder batch = batches.get(message.gameObjectName);
+            if (batch == null) {
+                batch = new StringBuilder();
+                batches.put(message.gameObjectName, batch);
+            } else {
+                batch.append(BATCH_LINE_SEPARATOR);
+            }
+            appendEscaped(batch, message.functionName);
+            batch.append(BATCH_FIELD_SEPARATOR);
+            appendEscaped(batch, message.args);
+        }
+        for (Map.Entry<String, StringBuilder> batch : batches.entrySet()) {
+            invoke(sendMessageMethod, batch.getKey(), batchFunction, batch.getValue().toString());
+        }
+    }
+
+    private static void appendEscaped(@NonNull StringBuilder builder, @NonNull String field) {
+        for (int n = 0; n < field.length(); n++) {
+            char c = field.charAt(n);
+            if (c == BATCH_ESCAPE) {
+                builder.append(BATCH_ESCAPE).append(BATCH_ESCAPE);
+            } else if (c == BATCH_FIELD_SEPARATOR) {
+                builder.append(BATCH_ESCAPE).append('t');
+            } else if (c == BATCH_LINE_SEPARATOR) {
+                builder.append(BATCH_ESCAPE).append('n');
+            } else {
+                builder.append(c);
+            }
+        }
+    }
+
+    private static void invoke(Method sendMessageMethod, String gameObjectName, String functionName, String args) {
+        try {
+            sendMessageMethod.invoke(null, gameObjectName, functionName, args);
+        } catch (IllegalAccessException e) {
+            Log.e(TAG, "UnitySendMessage " + gameObjectName + "." + functionName + " failed", e);
+        } catch (InvocationTargetException e) {
+            Log.e(TAG, "UnitySendMessage " + gameObjectName + "." + functionName + " failed", e.getCause());
+        }
+    }
+
+    /**
+     * The resolved UnityPlayer handles, a null handle could not be resolved.
+     */
+    private static final class UnityHandles {
+        final Field currentActivityField;
+        final Method sendMessageMethod;
+
+        UnityHandles(@Nullable Field currentActivityField, @Nullable Method sendMessageMethod) {
+            this.currentActivityField = currentActivityField;
+            this.sendMessageMethod = sendMessageMethod;
+        }
+    }
+
+    private static final class UnityMessage {
+        final String gameObjectName;
+        final String functionName;
+        final String args;
+
+        UnityMessage(String gameObjectName, String functionName, String args) {
+            this.gameObjectName = gameObjectName;
+            this.functionName = functionName;
+            this.args = args;
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package com.zy.dynamicpermissionlib;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import androidx.annotation.AnyThread;
+import androidx.annotation.MainThread;
+import androidx.annotation.NonNull;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Entry point of the requests made by Unity on its script thread. The calling thread only appends
+ * the request to a lock-free queue and returns: it never waits for a lock of the library, for a
+ * binder call or for Activity state. The queue is drained in one batch per main Looper tick, where
+ * the requests are issued, so the requests made during a frame also share one coalescing window.
+ */
+final class ZyUnityIngress {
+
+    private final ConcurrentLinkedQueue<UnityRequest> mQueue = new ConcurrentLinkedQueue<UnityRequest>();
+    private final AtomicBoolean mDrainScheduled = new AtomicBoolean(false);
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Runnable mDrainRunnable = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+    private static class UnityIngressHolder {
+        private static final ZyUnityIngress INSTANCE = new ZyUnityIngress();
+    }
+
+    private ZyUnityIngress() {
+    }
+
+    static ZyUnityIngress getInstance() {
+        return UnityIngressHolder.INSTANCE;
+    }
+
+    /**
+     * @param main            the object Unity called
+     * @param permissionNames the permission, or the permission list of a batch request
+     * @param batch           true for {@link ZyDynamicPermissionMain#ReqPermissions}, false for
+     *                        {@link ZyDynamicPermissionMain#ReqPermission}
+     */
+    @AnyThread
+    void enqueue(@NonNull ZyDynamicPermissionMain main, String permissionNames, boolean batch) {
+        mQueue.offer(new UnityRequest(main, permissionNames, batch));
+        if (mDrainScheduled.compareAndSet(false, true)) {
+            mHandler.post(mDrainRunnable);
+        }
+    }
+
+    @MainThread
+    private void drain() {
+        //reset first, a request enqueued while draining schedules the next drain
+        mDrainScheduled.set(false);
+        UnityRequest request;
+        while ((request = mQueue.poll()) != null) {
+            if (request.batch) {
+                request.main.ReqPermissions(request.main.getActivity(), request.permissionNames);
+            } else {
+                request.main.ReqPermission(request.main.getActivity(), request.permissionNames);
+            }
+        }
+    }
+
+    private static final class UnityRequest {
+        final ZyDynamicPermissionMain main;
+        final String permissionNames;
+        final boolean batch;
+
+        UnityRequest(ZyDynamicPermissionMain main, String permissionNames, boolean batch) {
+            this.main = main;
+            this.permissionNames = permissionNames;
+            this.batch = batch;
+        }
+    }
+}
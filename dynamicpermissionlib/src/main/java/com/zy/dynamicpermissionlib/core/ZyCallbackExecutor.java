@@ -0,0 +1,14 @@
+package com.zy.dynamicpermissionlib.core;
+
+/**
+ * Runs the deferred work of the {@link ZyPermissionEngine}, e.g. the flush of the coalesced
+ * requests of a host. On Android it posts to the main Looper.
+ */
+public interface ZyCallbackExecutor {
+
+    /**
+     * @param runnable    the work to run
+     * @param delayMillis how long to wait before running it, 0 to run it as soon as possible
+     */
+    void executeDelayed(Runnable runnable, long delayMillis);
+}
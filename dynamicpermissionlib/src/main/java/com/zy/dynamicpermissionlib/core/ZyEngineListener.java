@@ -0,0 +1,37 @@
+package com.zy.dynamicpermissionlib.core;
+
+/**
+ * Observes the {@link ZyPermissionEngine}, e.g. to instrument it. It is called on the thread doing
+ * the work, sometimes while holding the lock of a session, so it must return quickly.
+ */
+public interface ZyEngineListener {
+
+    /**
+     * @param waitNanos the time spent waiting for the lock of a session
+     */
+    void onLockWait(long waitNanos);
+
+    /**
+     * Called right before the request is handed to the {@link ZyRequestBackend}.
+     */
+    void onSystemRequest(ZyPermissionRequest request);
+
+    /**
+     * Called when the result of the request arrives, before it is dispatched.
+     */
+    void onResultReceived(ZyPermissionRequest request);
+
+    /**
+     * Called once for each outcome of a permission reported to the sinks, whatever their number.
+     *
+     * @param permission the permission of the outcome
+     * @param state      one of the STATE_ constants of {@link ZyPermissionChecker}
+     */
+    void onPermissionResult(String permission, int state);
+
+    /**
+     * Called when a system request can not be issued because every request code of the
+     * range is in use, the queued permissions are denied.
+     */
+    void onRequestCodesExhausted();
+}
@@ -0,0 +1,105 @@
+package com.zy.dynamicpermissionlib.core;
+
+import java.util.Arrays;
+
+/**
+ * A set of permission ids, see {@link ZyPermissionIndex}, stored as a bitset. It is sized for the
+ * table of the index and only grows when an id outside of the table is set.
+ * It is not thread safe, the owner guards it.
+ */
+public final class ZyPermissionBits {
+
+    private static final int WORD_SHIFT = 6;
+
+    private final ZyPermissionIndex mIndex;
+    private long[] mWords;
+
+    public ZyPermissionBits(ZyPermissionIndex index) {
+        mIndex = index;
+        mWords = new long[wordCount(index.tableSize())];
+    }
+
+    private static int wordCount(int bitCount) {
+        return Math.max(1, (bitCount + 63) >>> WORD_SHIFT);
+    }
+
+    public boolean get(int id) {
+        int word = id >>> WORD_SHIFT;
+        return word < mWords.length && (mWords[word] & (1L << id)) != 0;
+    }
+
+    public void set(int id) {
+        int word = id >>> WORD_SHIFT;
+        if (word >= mWords.length) {
+            mWords = Arrays.copyOf(mWords, Math.max(word + 1, wordCount(mIndex.count())));
+        }
+        mWords[word] |= 1L << id;
+    }
+
+    /**
+     * @return true if the id was set before the call
+     */
+    public boolean clear(int id) {
+        int word = id >>> WORD_SHIFT;
+        if (word >= mWords.length) {
+            return false;
+        }
+        boolean wasSet = (mWords[word] & (1L << id)) != 0;
+        mWords[word] &= ~(1L << id);
+        return wasSet;
+    }
+
+    public void clear() {
+        Arrays.fill(mWords, 0);
+    }
+
+    public boolean isEmpty() {
+        for (long word : mWords) {
+            if (word != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public int cardinality() {
+        int count = 0;
+        for (long word : mWords) {
+            count += Long.bitCount(word);
+        }
+        return count;
+    }
+
+    /**
+     * @param fromId the id to start from, inclusive
+     * @return the first id set from fromId, or -1 if there is none
+     */
+    public int nextSetBit(int fromId) {
+        int word = fromId >>> WORD_SHIFT;
+        if (word >= mWords.length) {
+            return -1;
+        }
+        long bits = mWords[word] & (-1L << fromId);
+        while (true) {
+            if (bits != 0) {
+                return (word << WORD_SHIFT) + Long.numberOfTrailingZeros(bits);
+            }
+            if (++word == mWords.length) {
+                return -1;
+            }
+            bits = mWords[word];
+        }
+    }
+
+    /**
+     * @return the permission names of the ids set, in id order
+     */
+    public String[] toPermissions() {
+        String[] permissions = new String[cardinality()];
+        int n = 0;
+        for (int id = nextSetBit(0); id >= 0; id = nextSetBit(id + 1)) {
+            permissions[n++] = mIndex.nameOf(id);
+        }
+        return permissions;
+    }
+}
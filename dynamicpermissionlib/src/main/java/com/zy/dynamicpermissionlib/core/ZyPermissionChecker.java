@@ -0,0 +1,56 @@
+package com.zy.dynamicpermissionlib.core;
+
+/**
+ * Tells the {@link ZyPermissionEngine} the grant state of a permission on the platform.
+ * The GRANTED and DENIED states have the values of the platform grant results, so the raw
+ * results of a system request can be reported with the same constants.
+ */
+public interface ZyPermissionChecker {
+
+    int STATE_GRANTED = 0;
+    int STATE_DENIED = -1;
+    /**
+     * The permission does not exist on the platform, it can not be requested.
+     */
+    int STATE_NOT_FOUND = -2;
+    /**
+     * The permission is denied and the system will not show its dialog again, it is reported
+     * right away instead of being requested.
+     */
+    int STATE_FORBIDDEN = -3;
+    /**
+     * The system request got no result within the time-to-live of the engine. It is reported by
+     * the engine only, a checker never returns it.
+     */
+    int STATE_TIMEOUT = -4;
+    /**
+     * The application does not declare the permission, the system would deny it without showing
+     * the dialog, it is reported right away instead of being requested.
+     */
+    int STATE_UNDECLARED = -5;
+    /**
+     * The permission is denied without the user being asked, e.g. its host was destroyed before the
+     * system request or the result of the system request left it out, so the denial tells nothing
+     * about the choice of the user. It is reported by the engine only, a checker never returns it.
+     */
+    int STATE_CANCELED = -6;
+
+    /**
+     * Called before a permission is requested, the answer may come from a cache. Only the
+     * permissions checked as {@link #STATE_DENIED} are requested.
+     *
+     * @param permission the permission to check
+     * @return one of the STATE_ constants
+     */
+    int checkPermission(String permission);
+
+    /**
+     * Called for every permission result of a system request before it is reported to the
+     * actions, so a platform whose grant results can not be trusted can double check them.
+     *
+     * @param permission  the permission of the result
+     * @param grantResult the grant result reported by the system request
+     * @return {@link #STATE_GRANTED} or {@link #STATE_DENIED}
+     */
+    int verifyResult(String permission, int grantResult);
+}
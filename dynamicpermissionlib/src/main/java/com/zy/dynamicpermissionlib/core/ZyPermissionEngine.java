@@ -0,0 +1,689 @@
+package com.zy.dynamicpermissionlib.core;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The platform independent part of the permission request pipeline: the bookkeeping of the pending
+ * actions of each host, the filter deciding which permissions still need a system request, the
+ * coalescing of the requests of a host into one system request at a time, and the dispatch of the
+ * results to the actions waiting for them.
+ * The hosts are only referenced weakly: the session of a host which is garbage collected without
+ * being reported destroyed is dropped, and a system request without result is forgotten after a
+ * time-to-live, so a lost result never pins its sinks, and the Activities they capture, forever.
+ * The platform is reached through {@link ZyPermissionChecker}, {@link ZyRequestBackend} and
+ * {@link ZyCallbackExecutor} only, so the engine runs on a plain JVM with fakes of these interfaces.
+ *
+ * @param <H> the type of the hosts showing the permission dialogs, an Activity on Android
+ */
+public final class ZyPermissionEngine<H> {
+
+    /**
+     * The request code reported with the results produced without a system request,
+     * e.g. the denial of the permissions queued by a host which has been destroyed.
+     */
+    public static final int LOCAL_REQUEST_CODE = 1;
+
+    /**
+     * The default time-to-live of a system request, see {@link #setRequestTimeToLive(long)}.
+     */
+    public static final long DEFAULT_REQUEST_TTL_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+    /**
+     * Marks a result which has not been verified by the checker yet, no STATE_ constant uses it.
+     */
+    private static final int STATE_UNVERIFIED = Integer.MIN_VALUE;
+
+    /**
+     * Marks a denial made by the engine without the user being asked: the result is verified by the
+     * checker, and reported as {@link ZyPermissionChecker#STATE_CANCELED} if it is still a denial.
+     */
+    private static final int STATE_UNANSWERED = Integer.MIN_VALUE + 1;
+
+    private static final ZyEngineListener NO_LISTENER = new ZyEngineListener() {
+        @Override
+        public void onLockWait(long waitNanos) {
+        }
+
+        @Override
+        public void onSystemRequest(ZyPermissionRequest request) {
+        }
+
+        @Override
+        public void onResultReceived(ZyPermissionRequest request) {
+        }
+
+        @Override
+        public void onPermissionResult(String permission, int state) {
+        }
+
+        @Override
+        public void onRequestCodesExhausted() {
+        }
+    };
+
+    private final ZyPermissionIndex mIndex;
+    private final ZyPermissionChecker mChecker;
+    private final ZyRequestBackend<H> mBackend;
+    private final ZyCallbackExecutor mExecutor;
+    private final int mRequestCodeStart;
+    private final int mRequestCodeCount;
+
+    private final ConcurrentHashMap<Integer, ZyPermissionRequest> mRequests = new ConcurrentHashMap<Integer, ZyPermissionRequest>();
+    private final AtomicInteger mNextRequestCode = new AtomicInteger(0);
+    /**
+     * The sessions, looked up by host identity. There are rarely more than one or two sessions
+     * alive at a time, a scan is cheaper than hashing a weak key.
+     */
+    private final List<ZyPermissionSession<H>> mSessions = new ArrayList<ZyPermissionSession<H>>(2);
+    private final ReferenceQueue<H> mCollectedHosts = new ReferenceQueue<H>();
+    private final AtomicBoolean mSweepScheduled = new AtomicBoolean(false);
+    private final Runnable mSweepRunnable = new Runnable() {
+        @Override
+        public void run() {
+            expireRequests();
+        }
+    };
+
+    private volatile long mCoalescingWindowMillis = 0;
+    private volatile ZyEngineListener mListener = NO_LISTENER;
+    private volatile long mRequestTtlMillis = DEFAULT_REQUEST_TTL_MILLIS;
+
+    /**
+     * @param index            the interning of the permission names
+     * @param checker          the grant states of the platform
+     * @param backend          the system requests of the platform
+     * @param executor         the deferred work of the engine
+     * @param requestCodeStart the first request code reserved for the engine
+     * @param requestCodeCount the number of request codes reserved for the engine
+     */
+    public ZyPermissionEngine(ZyPermissionIndex index,
+                              ZyPermissionChecker checker,
+                              ZyRequestBackend<H> backend,
+                              ZyCallbackExecutor executor,
+                              int requestCodeStart,
+                              int requestCodeCount) {
+        mIndex = index;
+        mChecker = checker;
+        mBackend = backend;
+        mExecutor = executor;
+        mRequestCodeStart = requestCodeStart;
+        mRequestCodeCount = requestCodeCount;
+    }
+
+    public ZyPermissionIndex getIndex() {
+        return mIndex;
+    }
+
+    /**
+     * @param listener the listener observing the engine, or null to remove it
+     */
+    public void setListener(ZyEngineListener listener) {
+        mListener = listener == null ? NO_LISTENER : listener;
+    }
+
+    /**
+     * Set how long a system request may wait for its result. A request still without result is
+     * then forgotten and its permissions are reported as {@link ZyPermissionChecker#STATE_TIMEOUT},
+     * a result arriving later is not routed anymore.
+     *
+     * @param ttlMillis the time-to-live in milliseconds, 0 to wait for the results forever
+     */
+    public void setRequestTimeToLive(long ttlMillis) {
+        mRequestTtlMillis = Math.max(0, ttlMillis);
+        scheduleSweep(0);
+    }
+
+    /**
+     * Set how long a request waits for other requests of the same host before the system request
+     * is issued, all the permissions requested meanwhile are merged into one system request.
+     *
+     * @param windowMillis the coalescing window in milliseconds
+     */
+    public void setCoalescingWindow(long windowMillis) {
+        mCoalescingWindowMillis = Math.max(0, windowMillis);
+    }
+
+    /**
+     * Report the permissions which are granted or do not exist to the sink right away and queue the
+     * others for the next system request of the host. A permission already pending is not requested
+     * again, the sink simply waits for the pending result.
+     *
+     * @param host        the host requesting the permissions
+     * @param permissions the permissions to request
+     * @param sink        the sink to notify of the results, or null
+     */
+    public void requestPermissions(H host, String[] permissions, ZyResultSink sink) {
+        ZyPermissionSession<H> session = getSession(host, true);
+        List<Delivery> deliveries = new ArrayList<Delivery>(0);
+        long lockStart = System.nanoTime();
+        synchronized (session) {
+            mListener.onLockWait(System.nanoTime() - lockStart);
+            if (sink != null) {
+                sink.registerPermissions(permissions);
+            }
+            if (queuePermissionsToRequest(session, permissions, sink, deliveries)) {
+                scheduleFlush(session);
+            }
+        }
+        deliver(deliveries);
+    }
+
+    /**
+     * Route the result of a system request to the session which issued it. The permissions of the
+     * request missing from the result, e.g. when the request was canceled, are denied.
+     *
+     * @param requestCode the request code of the result
+     * @param permissions the permissions of the result
+     * @param results     the grant result of each permission
+     * @return false if no request of the engine was issued with the request code
+     */
+    @SuppressWarnings("unchecked")
+    public boolean onRequestResult(int requestCode, String[] permissions, int[] results) {
+        ZyPermissionRequest request = mRequests.remove(requestCode);
+        if (request == null) {
+            return false;
+        }
+        mListener.onResultReceived(request);
+        ZyPermissionSession<H> session = (ZyPermissionSession<H>) request.session;
+        List<Delivery> deliveries = new ArrayList<Delivery>(2);
+        long lockStart = System.nanoTime();
+        synchronized (session) {
+            mListener.onLockWait(System.nanoTime() - lockStart);
+            dispatchResults(session, requestCode, permissions, results, STATE_UNVERIFIED, deliveries);
+            if (session.inFlightRequest == request) {
+                session.inFlightRequest = null;
+            }
+            List<String> unanswered = new ArrayList<String>(0);
+            for (String perm : request.permissions) {
+                int id = mIndex.idOf(perm);
+                if (session.pendingRequests.get(id) && !session.queuedRequests.get(id)) {
+                    unanswered.add(perm);
+                }
+            }
+            if (!unanswered.isEmpty()) {
+                int[] deniedResults = new int[unanswered.size()];
+                Arrays.fill(deniedResults, ZyPermissionChecker.STATE_DENIED);
+                dispatchResults(session, requestCode, unanswered.toArray(new String[unanswered.size()]),
+                        deniedResults, STATE_UNANSWERED, deliveries);
+            }
+            scheduleFlush(session);
+        }
+        deliver(deliveries);
+        return true;
+    }
+
+    /**
+     * Forget a sink which does not want its results anymore, e.g. when its caller gave up waiting.
+     * The permissions it requested stay requested for the other sinks, the sink is simply not
+     * notified nor referenced by the engine anymore.
+     *
+     * @param sink the sink to forget
+     */
+    public void removeSink(ZyResultSink sink) {
+        List<ZyPermissionSession<H>> sessions;
+        synchronized (mSessions) {
+            sessions = new ArrayList<ZyPermissionSession<H>>(mSessions);
+        }
+        for (ZyPermissionSession<H> session : sessions) {
+            synchronized (session) {
+                session.removeWaiter(sink);
+            }
+        }
+    }
+
+    /**
+     * Forget the session of a host which can not show dialogs anymore: the permissions that were
+     * only queued are denied. When the host is recreated, its request in flight is still routed by
+     * its request code and its sinks keep waiting for the result, see {@link #restoreRequest}.
+     * When it is gone for good, nobody will show its dialog again, so the sinks waiting for its
+     * request in flight are denied and released as well.
+     *
+     * @param host      the destroyed host
+     * @param finishing true if the host is not going to be recreated
+     */
+    public void onHostDestroyed(H host, boolean finishing) {
+        ZyPermissionSession<H> session = null;
+        synchronized (mSessions) {
+            for (int i = 0; i < mSessions.size(); i++) {
+                if (mSessions.get(i).getHost() == host) {
+                    session = mSessions.remove(i);
+                    break;
+                }
+            }
+        }
+        if (session != null) {
+            destroySession(session, finishing);
+        }
+    }
+
+    /**
+     * Bind a system request issued by a previous instance of the host, typically saved in the state
+     * of an Activity recreated after a configuration change or the death of the process, to the new
+     * instance. The permissions of the request are pending again in the session of the new host, so
+     * requesting them again waits for the result of the request instead of issuing a new one.
+     * When the request is still known, i.e. the process survived, its waiting sinks move to the new
+     * session as well, otherwise it is registered again under its request code.
+     *
+     * @param host        the new instance of the host
+     * @param requestCode the request code of the system request
+     * @param permissions the permissions of the system request
+     * @return false if the request code is used by another request or is not reserved for the engine
+     */
+    @SuppressWarnings("unchecked")
+    public boolean restoreRequest(H host, int requestCode, String[] permissions) {
+        if (requestCode < mRequestCodeStart || requestCode >= mRequestCodeStart + mRequestCodeCount) {
+            return false;
+        }
+        ZyPermissionSession<H> session = getSession(host, true);
+        ZyPermissionRequest request = mRequests.get(requestCode);
+        //the sinks waiting in the previous session, in the order of the permissions
+        List<List<ZyResultSink>> waiters = new ArrayList<List<ZyResultSink>>(permissions.length);
+        if (request == null) {
+            request = new ZyPermissionRequest(requestCode, session, permissions);
+            request.setDispatchedAtNanos(System.nanoTime());
+            if (mRequests.putIfAbsent(requestCode, request) != null) {
+                return false;
+            }
+            scheduleSweep(mRequestTtlMillis);
+        } else if (request.session != session) {
+            if (!Arrays.equals(request.permissions, permissions)) {
+                return false;
+            }
+            ZyPermissionSession<H> previous = (ZyPermissionSession<H>) request.session;
+            synchronized (previous) {
+                if (!previous.destroyed) {
+                    //the previous host is alive, the request is not the one of the saved state
+                    return false;
+                }
+                for (String perm : permissions) {
+                    int id = mIndex.idOf(perm);
+                    waiters.add(previous.takeWaiters(id));
+                    previous.pendingRequests.clear(id);
+                }
+                if (previous.inFlightRequest == request) {
+                    previous.inFlightRequest = null;
+                }
+            }
+            request.session = session;
+        }
+        synchronized (session) {
+            for (int n = 0; n < permissions.length; n++) {
+                int id = mIndex.idOf(permissions[n]);
+                session.pendingRequests.set(id);
+                session.queuedRequests.clear(id);
+                List<ZyResultSink> sinks = n < waiters.size() ? waiters.get(n) : null;
+                if (sinks != null) {
+                    for (ZyResultSink sink : sinks) {
+                        session.addWaiter(id, sink);
+                    }
+                }
+            }
+            if (session.inFlightRequest == null) {
+                session.inFlightRequest = request;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param host the host to look up
+     * @return the system request of the host in flight, or null if there is none
+     */
+    public ZyPermissionRequest getInFlightRequest(H host) {
+        ZyPermissionSession<H> session = getSession(host, false);
+        if (session == null) {
+            return null;
+        }
+        synchronized (session) {
+            return session.inFlightRequest;
+        }
+    }
+
+    /**
+     * @param permission the permission to look up
+     * @return a system request in flight asking for the permission, or null if there is none
+     */
+    public ZyPermissionRequest findRequest(String permission) {
+        for (ZyPermissionRequest request : mRequests.values()) {
+            if (request.contains(permission)) {
+                return request;
+            }
+        }
+        return null;
+    }
+
+    private ZyPermissionSession<H> getSession(H host, boolean create) {
+        expungeCollectedHosts();
+        synchronized (mSessions) {
+            for (int i = 0; i < mSessions.size(); i++) {
+                ZyPermissionSession<H> session = mSessions.get(i);
+                if (session.getHost() == host) {
+                    return session;
+                }
+            }
+            if (!create) {
+                return null;
+            }
+            ZyPermissionSession<H> session = new ZyPermissionSession<H>(this, host, mCollectedHosts);
+            mSessions.add(session);
+            return session;
+        }
+    }
+
+    /**
+     * Drop the sessions of the hosts which have been garbage collected without being reported
+     * destroyed, their queued permissions are denied.
+     */
+    private void expungeCollectedHosts() {
+        Reference<? extends H> reference;
+        while ((reference = mCollectedHosts.poll()) != null) {
+            ZyPermissionSession<H> session = null;
+            synchronized (mSessions) {
+                for (int i = 0; i < mSessions.size(); i++) {
+                    if (mSessions.get(i).isHostReference(reference)) {
+                        session = mSessions.remove(i);
+                        break;
+                    }
+                }
+            }
+            if (session != null) {
+                destroySession(session, true);
+            }
+        }
+    }
+
+    private void destroySession(ZyPermissionSession<H> session, boolean finishing) {
+        List<Delivery> deliveries = new ArrayList<Delivery>(0);
+        synchronized (session) {
+            session.destroyed = true;
+            denyQueuedRequests(session, deliveries);
+            if (finishing && !session.pendingRequests.isEmpty()) {
+                //the request in flight is still routed by its request code, but nobody waits for it
+                String[] permissions = session.pendingRequests.toPermissions();
+                int[] results = new int[permissions.length];
+                Arrays.fill(results, ZyPermissionChecker.STATE_DENIED);
+                dispatchResults(session, LOCAL_REQUEST_CODE, permissions, results, STATE_UNANSWERED, deliveries);
+            }
+        }
+        deliver(deliveries);
+    }
+
+    /**
+     * Filter the permissions list:
+     * If a permission is not granted, register the sink as waiting for it and queue it in the
+     * session unless it is already pending
+     * if a permission is granted, add its state for the sink to the deliveries, do not queue it
+     * Must be called while holding the session lock.
+     *
+     * @return true if at least one permission is not granted yet
+     */
+    private boolean queuePermissionsToRequest(ZyPermissionSession<H> session, String[] permissions,
+                                              ZyResultSink sink, List<Delivery> deliveries) {
+        boolean notGranted = false;
+        for (String perm : permissions) {
+            int state = mChecker.checkPermission(perm);
+            if (state == ZyPermissionChecker.STATE_DENIED) {
+                notGranted = true;
+                int id = mIndex.idOf(perm);
+                //a permission already pending is not requested again, the sink waits for its result
+                if (!session.pendingRequests.get(id)) {
+                    session.pendingRequests.set(id);
+                    session.queuedRequests.set(id);
+                }
+                if (sink != null) {
+                    session.addWaiter(id, sink);
+                }
+            } else if (sink != null) {
+                mListener.onPermissionResult(perm, state);
+                deliveries.add(new Delivery(sink, perm, state));
+            }
+        }
+        return notGranted;
+    }
+
+    /**
+     * Schedule the system request of the queued permissions, unless a system request of the
+     * session is already in flight: the queue is then flushed when its result arrives.
+     * Must be called while holding the session lock.
+     */
+    private void scheduleFlush(ZyPermissionSession<H> session) {
+        if (session.inFlightRequest != null || session.flushScheduled || session.queuedRequests.isEmpty()) {
+            return;
+        }
+        session.flushScheduled = true;
+        mExecutor.executeDelayed(session.flushRunnable, mCoalescingWindowMillis);
+    }
+
+    /**
+     * Issue one system request for all the queued permissions of the session.
+     */
+    void flushQueuedRequests(ZyPermissionSession<H> session) {
+        H host;
+        ZyPermissionRequest request;
+        List<Delivery> deliveries = new ArrayList<Delivery>(0);
+        long lockStart = System.nanoTime();
+        synchronized (session) {
+            mListener.onLockWait(System.nanoTime() - lockStart);
+            session.flushScheduled = false;
+            if (session.inFlightRequest != null || session.queuedRequests.isEmpty()) {
+                return;
+            }
+            host = session.getHost();
+            if (host == null || session.destroyed || !mBackend.canRequest(host)) {
+                //nobody can show the dialog anymore, the queued permissions are denied
+                denyQueuedRequests(session, deliveries);
+                request = null;
+            } else {
+                request = registerRequest(session, session.queuedRequests.toPermissions());
+                if (request == null) {
+                    mListener.onRequestCodesExhausted();
+                    denyQueuedRequests(session, deliveries);
+                } else {
+                    session.queuedRequests.clear();
+                    session.inFlightRequest = request;
+                }
+            }
+        }
+        if (request == null) {
+            deliver(deliveries);
+            return;
+        }
+        mListener.onSystemRequest(request);
+        request.setDispatchedAtNanos(System.nanoTime());
+        scheduleSweep(mRequestTtlMillis);
+        mBackend.requestPermissions(host, request);
+    }
+
+    /**
+     * Schedule the eviction of the expired requests, unless it is already scheduled or there is
+     * nothing to evict.
+     */
+    private void scheduleSweep(long delayMillis) {
+        if (mRequestTtlMillis > 0 && !mRequests.isEmpty() && mSweepScheduled.compareAndSet(false, true)) {
+            mExecutor.executeDelayed(mSweepRunnable, delayMillis);
+        }
+    }
+
+    /**
+     * Forget the system requests older than the time-to-live and report their permissions as
+     * timed out, then schedule the next sweep for the oldest request left.
+     */
+    @SuppressWarnings("unchecked")
+    private void expireRequests() {
+        mSweepScheduled.set(false);
+        expungeCollectedHosts();
+        long ttlNanos = TimeUnit.MILLISECONDS.toNanos(mRequestTtlMillis);
+        if (ttlNanos <= 0) {
+            return;
+        }
+        long now = System.nanoTime();
+        long nextExpiryNanos = Long.MAX_VALUE;
+        for (ZyPermissionRequest request : mRequests.values()) {
+            long dispatchedAt = request.getDispatchedAtNanos();
+            if (dispatchedAt == 0) {
+                //not handed to the backend yet
+                nextExpiryNanos = Math.min(nextExpiryNanos, ttlNanos);
+                continue;
+            }
+            long age = now - dispatchedAt;
+            if (age < ttlNanos) {
+                nextExpiryNanos = Math.min(nextExpiryNanos, ttlNanos - age);
+                continue;
+            }
+            if (!mRequests.remove(request.requestCode, request)) {
+                continue;
+            }
+            ZyPermissionSession<H> session = (ZyPermissionSession<H>) request.session;
+            List<Delivery> deliveries = new ArrayList<Delivery>(1);
+            synchronized (session) {
+                if (session.inFlightRequest == request) {
+                    session.inFlightRequest = null;
+                }
+                int[] results = new int[request.permissions.length];
+                Arrays.fill(results, ZyPermissionChecker.STATE_DENIED);
+                dispatchResults(session, request.requestCode, request.permissions, results,
+                        ZyPermissionChecker.STATE_TIMEOUT, deliveries);
+                scheduleFlush(session);
+            }
+            deliver(deliveries);
+        }
+        if (nextExpiryNanos != Long.MAX_VALUE) {
+            scheduleSweep(TimeUnit.NANOSECONDS.toMillis(nextExpiryNanos) + 1);
+        }
+    }
+
+    /**
+     * Allocate a request code from the reserved range and register the request under it.
+     *
+     * @return the registered request, or null if every reserved request code is in use
+     */
+    private ZyPermissionRequest registerRequest(ZyPermissionSession<H> session, String[] permissions) {
+        for (int n = 0; n < mRequestCodeCount; n++) {
+            int requestCode = mRequestCodeStart
+                    + (mNextRequestCode.getAndIncrement() & Integer.MAX_VALUE) % mRequestCodeCount;
+            ZyPermissionRequest request = new ZyPermissionRequest(requestCode, session, permissions);
+            if (mRequests.putIfAbsent(requestCode, request) == null) {
+                return request;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Deny the permissions queued in the session, used when they can not be requested anymore.
+     * Must be called while holding the session lock.
+     */
+    private void denyQueuedRequests(ZyPermissionSession<H> session, List<Delivery> deliveries) {
+        if (session.queuedRequests.isEmpty()) {
+            return;
+        }
+        String[] permissions = session.queuedRequests.toPermissions();
+        session.queuedRequests.clear();
+        int[] results = new int[permissions.length];
+        Arrays.fill(results, ZyPermissionChecker.STATE_DENIED);
+        dispatchResults(session, LOCAL_REQUEST_CODE, permissions, results, STATE_UNANSWERED, deliveries);
+    }
+
+    /**
+     * Take the sinks waiting for the results and add what they must be told to the deliveries. Only
+     * the sinks registered for a permission of the result are touched: each of them gets the raw
+     * result once, then the result of every permission it waits for, and each permission is verified
+     * once whatever the number of sinks. Must be called while holding the session lock, the
+     * deliveries are handed to {@link #deliver(List)} once it is released.
+     *
+     * @param state the state reported for every permission, or STATE_UNVERIFIED to verify the results
+     *              of a system request, or STATE_UNANSWERED to verify the denials made by the engine
+     */
+    private void dispatchResults(ZyPermissionSession<H> session, int requestCode, String[] permissions,
+                                 int[] results, int state, List<Delivery> deliveries) {
+        int size = Math.min(permissions.length, results.length);
+        List<ZyResultSink> notified = new ArrayList<ZyResultSink>(1);
+        for (int n = 0; n < size; n++) {
+            int id = mIndex.idOf(permissions[n]);
+            session.pendingRequests.clear(id);
+            List<ZyResultSink> waiters = session.takeWaiters(id);
+            if (waiters == null) {
+                continue;
+            }
+            int permissionState = state;
+            if (state == STATE_UNVERIFIED || state == STATE_UNANSWERED) {
+                permissionState = mChecker.verifyResult(permissions[n], results[n]);
+                if (state == STATE_UNANSWERED && permissionState == ZyPermissionChecker.STATE_DENIED) {
+                    permissionState = ZyPermissionChecker.STATE_CANCELED;
+                }
+            }
+            mListener.onPermissionResult(permissions[n], permissionState);
+            for (ZyResultSink sink : waiters) {
+                if (!containsSink(notified, sink)) {
+                    notified.add(sink);
+                    deliveries.add(new Delivery(sink, requestCode, permissions, results));
+                }
+                deliveries.add(new Delivery(sink, permissions[n], permissionState));
+            }
+        }
+    }
+
+    /**
+     * Invoke the sinks, must be called without holding any session lock: a sink may request
+     * permissions again or block on another thread requesting permissions from the same host.
+     */
+    private static void deliver(List<Delivery> deliveries) {
+        for (int i = 0; i < deliveries.size(); i++) {
+            Delivery delivery = deliveries.get(i);
+            if (delivery.permissions != null) {
+                delivery.sink.onRequestPermissionsResult(delivery.requestCode, delivery.permissions,
+                        delivery.results);
+            } else if (delivery.sink.isWaitingFor(delivery.permission)) {
+                delivery.sink.onResult(delivery.permission, delivery.state);
+            }
+        }
+    }
+
+    /**
+     * A callback of a sink collected under the session lock: either the raw result of a request or
+     * the state of one permission.
+     */
+    private static final class Delivery {
+        final ZyResultSink sink;
+        final int requestCode;
+        final String[] permissions;
+        final int[] results;
+        final String permission;
+        final int state;
+
+        Delivery(ZyResultSink sink, int requestCode, String[] permissions, int[] results) {
+            this.sink = sink;
+            this.requestCode = requestCode;
+            this.permissions = permissions;
+            this.results = results;
+            this.permission = null;
+            this.state = 0;
+        }
+
+        Delivery(ZyResultSink sink, String permission, int state) {
+            this.sink = sink;
+            this.requestCode = 0;
+            this.permissions = null;
+            this.results = null;
+            this.permission = permission;
+            this.state = state;
+        }
+    }
+
+    private static boolean containsSink(List<ZyResultSink> sinks, ZyResultSink sink) {
+        for (int i = 0; i < sinks.size(); i++) {
+            if (sinks.get(i) == sink) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,80 @@
+package com.zy.dynamicpermissionlib.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Interns permission names into small integer ids, so the permission states can be kept in
+ * {@link ZyPermissionBits} instead of sets of strings.
+ * The names of the table given to the constructor use their index in the table as id, which costs
+ * a binary search and no allocation. Any other name, e.g. a custom permission of the application,
+ * gets the next free id the first time it is seen.
+ */
+public final class ZyPermissionIndex {
+
+    private final String[] mTable;
+    private final ConcurrentHashMap<String, Integer> mExtraIds = new ConcurrentHashMap<String, Integer>();
+    private final List<String> mExtraNames = new ArrayList<String>();
+
+    /**
+     * @param sortedNames the well known permission names, sorted in natural order
+     */
+    public ZyPermissionIndex(String[] sortedNames) {
+        mTable = sortedNames;
+    }
+
+    /**
+     * @return the number of names in the table, which is the first id allocated to other names
+     */
+    public int tableSize() {
+        return mTable.length;
+    }
+
+    /**
+     * @param permission the permission name
+     * @return the id of the permission, allocated on the first call for names outside the table
+     */
+    public int idOf(String permission) {
+        int index = Arrays.binarySearch(mTable, permission);
+        if (index >= 0) {
+            return index;
+        }
+        Integer id = mExtraIds.get(permission);
+        if (id != null) {
+            return id;
+        }
+        synchronized (mExtraNames) {
+            id = mExtraIds.get(permission);
+            if (id == null) {
+                id = mTable.length + mExtraNames.size();
+                mExtraNames.add(permission);
+                mExtraIds.put(permission, id);
+            }
+            return id;
+        }
+    }
+
+    /**
+     * @param id an id returned by {@link #idOf(String)}
+     * @return the permission name of the id
+     */
+    public String nameOf(int id) {
+        if (id < mTable.length) {
+            return mTable[id];
+        }
+        synchronized (mExtraNames) {
+            return mExtraNames.get(id - mTable.length);
+        }
+    }
+
+    /**
+     * @return the number of ids allocated so far
+     */
+    public int count() {
+        synchronized (mExtraNames) {
+            return mTable.length + mExtraNames.size();
+        }
+    }
+}
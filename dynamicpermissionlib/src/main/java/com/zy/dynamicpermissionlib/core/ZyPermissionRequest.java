@@ -0,0 +1,58 @@
+package com.zy.dynamicpermissionlib.core;
+
+/**
+ * One system permission request in flight. The request code is allocated from the range
+ * given to the {@link ZyPermissionEngine}, so the result can be routed back to the
+ * session which issued the request.
+ */
+public final class ZyPermissionRequest {
+
+    public final int requestCode;
+    public final String[] permissions;
+    /**
+     * The session of the request, moved to the session of the new host when the host is recreated.
+     */
+    volatile ZyPermissionSession<?> session;
+
+    private volatile long mDispatchedAtNanos;
+    private boolean mDialogShown = false;
+
+    ZyPermissionRequest(int requestCode, ZyPermissionSession<?> session, String[] permissions) {
+        this.requestCode = requestCode;
+        this.session = session;
+        this.permissions = permissions;
+    }
+
+    /**
+     * @return when the request was handed to the backend, in {@link System#nanoTime()} units
+     */
+    public long getDispatchedAtNanos() {
+        return mDispatchedAtNanos;
+    }
+
+    void setDispatchedAtNanos(long dispatchedAtNanos) {
+        mDispatchedAtNanos = dispatchedAtNanos;
+    }
+
+    /**
+     * Record that the permission dialog of the request is showing.
+     *
+     * @return true for the first call only
+     */
+    public synchronized boolean markDialogShown() {
+        if (mDialogShown) {
+            return false;
+        }
+        mDialogShown = true;
+        return true;
+    }
+
+    public boolean contains(String permission) {
+        for (String perm : permissions) {
+            if (perm.equals(permission)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,114 @@
+package com.zy.dynamicpermissionlib.core;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The permission request state of one host. The system only shows one permission dialog
+ * at a time per Activity, so the requests of a host are coalesced and issued one after
+ * the other, while the sessions of different hosts progress independently.
+ * All the fields are guarded by the session itself.
+ */
+final class ZyPermissionSession<H> {
+
+    private final WeakReference<H> mHost;
+
+    /**
+     * The ids of the permissions queued or in flight, a permission in this set is never requested twice.
+     */
+    final ZyPermissionBits pendingRequests;
+
+    /**
+     * The ids of the permissions waiting for the next system request.
+     */
+    final ZyPermissionBits queuedRequests;
+
+    /**
+     * The sinks waiting for each permission, indexed by permission id, a slot is null when
+     * nobody waits for the permission.
+     */
+    private final List<List<ZyResultSink>> mWaiters = new ArrayList<List<ZyResultSink>>();
+
+    final Runnable flushRunnable;
+
+    ZyPermissionRequest inFlightRequest = null;
+    boolean flushScheduled = false;
+    boolean destroyed = false;
+
+    ZyPermissionSession(final ZyPermissionEngine<H> engine, H host, ReferenceQueue<? super H> collectedHosts) {
+        mHost = new WeakReference<H>(host, collectedHosts);
+        pendingRequests = new ZyPermissionBits(engine.getIndex());
+        queuedRequests = new ZyPermissionBits(engine.getIndex());
+        flushRunnable = new Runnable() {
+            @Override
+            public void run() {
+                engine.flushQueuedRequests(ZyPermissionSession.this);
+            }
+        };
+    }
+
+    /**
+     * Register the sink as waiting for the result of the permission.
+     */
+    void addWaiter(int id, ZyResultSink sink) {
+        while (mWaiters.size() <= id) {
+            mWaiters.add(null);
+        }
+        List<ZyResultSink> waiters = mWaiters.get(id);
+        if (waiters == null) {
+            waiters = new ArrayList<ZyResultSink>(1);
+            mWaiters.set(id, waiters);
+        }
+        waiters.add(sink);
+    }
+
+    /**
+     * Stop the sink waiting for any permission.
+     */
+    void removeWaiter(ZyResultSink sink) {
+        for (int id = 0; id < mWaiters.size(); id++) {
+            List<ZyResultSink> waiters = mWaiters.get(id);
+            if (waiters == null) {
+                continue;
+            }
+            for (int i = waiters.size() - 1; i >= 0; i--) {
+                if (waiters.get(i) == sink) {
+                    waiters.remove(i);
+                }
+            }
+            if (waiters.isEmpty()) {
+                mWaiters.set(id, null);
+            }
+        }
+    }
+
+    /**
+     * Remove and return the sinks waiting for the permission, the sinks registered afterwards
+     * go to a new list.
+     *
+     * @return the sinks waiting for the permission, or null if there is none
+     */
+    List<ZyResultSink> takeWaiters(int id) {
+        if (id >= mWaiters.size()) {
+            return null;
+        }
+        return mWaiters.set(id, null);
+    }
+
+    /**
+     * @return the host, or null if it has been garbage collected
+     */
+    H getHost() {
+        return mHost.get();
+    }
+
+    /**
+     * @return true if the reference, enqueued when its host was collected, is the one of this session
+     */
+    boolean isHostReference(Reference<?> reference) {
+        return mHost == reference;
+    }
+}
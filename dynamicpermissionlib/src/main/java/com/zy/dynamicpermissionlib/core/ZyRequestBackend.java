@@ -0,0 +1,23 @@
+package com.zy.dynamicpermissionlib.core;
+
+/**
+ * Issues the system permission requests of the {@link ZyPermissionEngine}. The result of a
+ * request must be handed back to {@link ZyPermissionEngine#onRequestResult(int, String[], int[])}
+ * with the request code of the request.
+ *
+ * @param <H> the type of the hosts showing the permission dialogs
+ */
+public interface ZyRequestBackend<H> {
+
+    /**
+     * @param host the host about to request the permissions
+     * @return false if the host can not show a permission dialog anymore
+     */
+    boolean canRequest(H host);
+
+    /**
+     * @param host    the host showing the permission dialog
+     * @param request the permissions to request and the request code of the result
+     */
+    void requestPermissions(H host, ZyPermissionRequest request);
+}
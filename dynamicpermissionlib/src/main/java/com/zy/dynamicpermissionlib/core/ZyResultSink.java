@@ -0,0 +1,37 @@
+package com.zy.dynamicpermissionlib.core;
+
+/**
+ * The receiving end of one request made to the {@link ZyPermissionEngine}. The sink remembers the
+ * permissions it waits for, the engine reports the result of each of them and forgets the sink once
+ * it does not wait for anything anymore. The callbacks are invoked without holding any lock of the
+ * engine, a sink may request permissions again from them.
+ */
+public interface ZyResultSink {
+
+    /**
+     * Called once, before any result, with the permissions of the request.
+     */
+    void registerPermissions(String[] permissions);
+
+    /**
+     * @return true if the sink still waits for the result of the permission
+     */
+    boolean isWaitingFor(String permission);
+
+    /**
+     * @return true if the sink still waits for the result of at least one permission
+     */
+    boolean isWaiting();
+
+    /**
+     * Called with the raw result of a system request before the results of the permissions
+     * the sink waits for are reported.
+     */
+    void onRequestPermissionsResult(int requestCode, String[] permissions, int[] grantResults);
+
+    /**
+     * @param permission the permission of the result
+     * @param state      one of the STATE_ constants of {@link ZyPermissionChecker}
+     */
+    void onResult(String permission, int state);
+}
@@ -0,0 +1,344 @@
+package com.zy.dynamicpermissionlib.core;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ZyPermissionEngineTest {
+
+    private static final String A = "a";
+    private static final String B = "b";
+    private static final String C = "c";
+
+    private static final int RANGE_START = 100;
+    private static final int RANGE_SIZE = 4;
+
+    private FakeChecker mChecker;
+    private FakeBackend mBackend;
+    private FakeExecutor mExecutor;
+    private ZyPermissionEngine<Object> mEngine;
+
+    @Before
+    public void setUp() {
+        mChecker = new FakeChecker();
+        mBackend = new FakeBackend();
+        mExecutor = new FakeExecutor();
+        mEngine = newEngine();
+    }
+
+    private ZyPermissionEngine<Object> newEngine() {
+        return new ZyPermissionEngine<Object>(new ZyPermissionIndex(new String[]{A, B, C}),
+                mChecker, mBackend, mExecutor, RANGE_START, RANGE_SIZE);
+    }
+
+    @Test
+    public void grantedPermissionIsReportedWithoutSystemRequest() {
+        mChecker.granted.add(C);
+        RecordingSink sink = new RecordingSink();
+        mEngine.requestPermissions(new Object(), new String[]{C}, sink);
+        mExecutor.runDue();
+        assertTrue(mBackend.requests.isEmpty());
+        assertEquals(Arrays.asList("c=0"), sink.results);
+    }
+
+    @Test
+    public void requestsWithinTheWindowAreCoalesced() {
+        mEngine.setCoalescingWindow(50);
+        Object host = new Object();
+        RecordingSink sinkA = new RecordingSink();
+        RecordingSink sinkB = new RecordingSink();
+        mEngine.requestPermissions(host, new String[]{A}, sinkA);
+        mEngine.requestPermissions(host, new String[]{B}, sinkB);
+        mExecutor.runDue();
+        assertTrue("the window is still open", mBackend.requests.isEmpty());
+
+        mExecutor.advance(50);
+        ZyPermissionRequest request = mBackend.takeOnly();
+        assertEquals(Arrays.asList(A, B), Arrays.asList(request.permissions));
+
+        mEngine.onRequestResult(request.requestCode, request.permissions,
+                new int[]{ZyPermissionChecker.STATE_GRANTED, ZyPermissionChecker.STATE_DENIED});
+        assertEquals(Arrays.asList("a=0"), sinkA.results);
+        assertEquals(Arrays.asList("b=-1"), sinkB.results);
+    }
+
+    @Test
+    public void requestForAPendingPermissionWaitsForTheRequestInFlight() {
+        Object host = new Object();
+        RecordingSink first = new RecordingSink();
+        mEngine.requestPermissions(host, new String[]{A}, first);
+        mExecutor.runDue();
+        ZyPermissionRequest request = mBackend.takeOnly();
+
+        RecordingSink second = new RecordingSink();
+        mEngine.requestPermissions(host, new String[]{A}, second);
+        mExecutor.runDue();
+        assertTrue("a pending permission must not be requested again", mBackend.requests.isEmpty());
+
+        mEngine.onRequestResult(request.requestCode, new String[]{A}, new int[]{ZyPermissionChecker.STATE_GRANTED});
+        assertEquals(Arrays.asList("a=0"), first.results);
+        assertEquals(Arrays.asList("a=0"), second.results);
+    }
+
+    @Test
+    public void permissionMissingFromTheResultIsCanceled() {
+        RecordingSink sink = new RecordingSink();
+        mEngine.requestPermissions(new Object(), new String[]{A, B}, sink);
+        mExecutor.runDue();
+        ZyPermissionRequest request = mBackend.takeOnly();
+
+        //a canceled request may report only part of its permissions
+        mEngine.onRequestResult(request.requestCode, new String[]{A}, new int[]{ZyPermissionChecker.STATE_GRANTED});
+        assertEquals(Arrays.asList("a=0", "b=" + ZyPermissionChecker.STATE_CANCELED), sink.results);
+        assertFalse(sink.isWaiting());
+    }
+
+    @Test
+    public void queuedPermissionOfAHostWhichCanNotRequestIsCanceled() {
+        mBackend.canRequest = false;
+        RecordingSink sink = new RecordingSink();
+        mEngine.requestPermissions(new Object(), new String[]{A}, sink);
+        mExecutor.runDue();
+        assertTrue(mBackend.requests.isEmpty());
+        assertEquals(Arrays.asList("a=" + ZyPermissionChecker.STATE_CANCELED), sink.results);
+    }
+
+    @Test
+    public void requestOlderThanItsTimeToLiveTimesOut() {
+        mEngine.setRequestTimeToLive(1000);
+        Object host = new Object();
+        RecordingSink sink = new RecordingSink();
+        mEngine.requestPermissions(host, new String[]{A}, sink);
+        mExecutor.runDue();
+        ZyPermissionRequest request = mBackend.takeOnly();
+        request.setDispatchedAtNanos(System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(1000));
+
+        mExecutor.advance(1000);
+        assertEquals(Arrays.asList("a=" + ZyPermissionChecker.STATE_TIMEOUT), sink.results);
+        assertNull(mEngine.getInFlightRequest(host));
+        assertFalse("a late result is not routed anymore", mEngine.onRequestResult(request.requestCode,
+                new String[]{A}, new int[]{ZyPermissionChecker.STATE_GRANTED}));
+    }
+
+    @Test
+    public void restoredRequestAfterProcessDeathDeliversItsResult() {
+        Object host = new Object();
+        mEngine.requestPermissions(host, new String[]{A, B}, new RecordingSink());
+        mExecutor.runDue();
+        ZyPermissionRequest saved = mBackend.takeOnly();
+
+        //the process dies, the recreated host gets a new engine and restores the saved request
+        ZyPermissionEngine<Object> engine = newEngine();
+        Object recreated = new Object();
+        assertTrue(engine.restoreRequest(recreated, saved.requestCode, saved.permissions));
+        RecordingSink sink = new RecordingSink();
+        engine.requestPermissions(recreated, new String[]{A, B}, sink);
+        mExecutor.runDue();
+        assertTrue("a restored request must not be issued again", mBackend.requests.isEmpty());
+
+        assertTrue(engine.onRequestResult(saved.requestCode, saved.permissions,
+                new int[]{ZyPermissionChecker.STATE_GRANTED, ZyPermissionChecker.STATE_DENIED}));
+        assertEquals(Arrays.asList("a=0", "b=-1"), sink.results);
+    }
+
+    @Test
+    public void restoredRequestAfterRecreationKeepsItsWaitingSinks() {
+        Object host = new Object();
+        RecordingSink previousSink = new RecordingSink();
+        mEngine.requestPermissions(host, new String[]{A}, previousSink);
+        mExecutor.runDue();
+        ZyPermissionRequest request = mBackend.takeOnly();
+        mEngine.onHostDestroyed(host, false);
+
+        Object recreated = new Object();
+        assertTrue(mEngine.restoreRequest(recreated, request.requestCode, request.permissions));
+        RecordingSink sink = new RecordingSink();
+        mEngine.requestPermissions(recreated, new String[]{A}, sink);
+        mExecutor.runDue();
+        assertTrue(mBackend.requests.isEmpty());
+
+        mEngine.onRequestResult(request.requestCode, new String[]{A}, new int[]{ZyPermissionChecker.STATE_GRANTED});
+        assertEquals(Arrays.asList("a=0"), previousSink.results);
+        assertEquals(Arrays.asList("a=0"), sink.results);
+    }
+
+    @Test
+    public void finishingHostReleasesTheSinksOfItsRequestInFlight() {
+        Object host = new Object();
+        RecordingSink sink = new RecordingSink();
+        mEngine.requestPermissions(host, new String[]{A}, sink);
+        mExecutor.runDue();
+        ZyPermissionRequest request = mBackend.takeOnly();
+
+        mEngine.onHostDestroyed(host, true);
+        assertEquals(Arrays.asList("a=" + ZyPermissionChecker.STATE_CANCELED), sink.results);
+        assertFalse(sink.isWaiting());
+
+        //the late result is still routed, but reaches nobody
+        assertTrue(mEngine.onRequestResult(request.requestCode, new String[]{A},
+                new int[]{ZyPermissionChecker.STATE_GRANTED}));
+        assertEquals(Arrays.asList("a=" + ZyPermissionChecker.STATE_CANCELED), sink.results);
+    }
+
+    @Test
+    public void finishingHostIsNotRetainedByItsSinks() throws InterruptedException {
+        Object host = new Object();
+        WeakReference<Object> reference = new WeakReference<Object>(host);
+        //like the sinks of the library, the sink references its host
+        mEngine.requestPermissions(host, new String[]{A}, new RecordingSink(host));
+        mExecutor.runDue();
+        mBackend.takeOnly();
+
+        mEngine.onHostDestroyed(host, true);
+        host = null;
+        for (int n = 0; n < 10 && reference.get() != null; n++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertNull("the engine must not keep a destroyed host alive", reference.get());
+    }
+
+    @Test
+    public void restoreRejectsRequestCodesOutsideTheRange() {
+        assertFalse(mEngine.restoreRequest(new Object(), RANGE_START + RANGE_SIZE, new String[]{A}));
+    }
+
+    @Test
+    public void removedSinkIsNotNotified() {
+        Object host = new Object();
+        RecordingSink removed = new RecordingSink();
+        RecordingSink kept = new RecordingSink();
+        mEngine.requestPermissions(host, new String[]{A}, removed);
+        mEngine.requestPermissions(host, new String[]{A}, kept);
+        mExecutor.runDue();
+        ZyPermissionRequest request = mBackend.takeOnly();
+
+        mEngine.removeSink(removed);
+        mEngine.onRequestResult(request.requestCode, new String[]{A}, new int[]{ZyPermissionChecker.STATE_GRANTED});
+        assertTrue(removed.results.isEmpty());
+        assertEquals(Arrays.asList("a=0"), kept.results);
+    }
+
+    static final class FakeChecker implements ZyPermissionChecker {
+        final Set<String> granted = new HashSet<String>();
+
+        @Override
+        public int checkPermission(String permission) {
+            return granted.contains(permission) ? STATE_GRANTED : STATE_DENIED;
+        }
+
+        @Override
+        public int verifyResult(String permission, int grantResult) {
+            return grantResult;
+        }
+    }
+
+    static final class FakeBackend implements ZyRequestBackend<Object> {
+        final List<ZyPermissionRequest> requests = new ArrayList<ZyPermissionRequest>();
+        boolean canRequest = true;
+
+        @Override
+        public boolean canRequest(Object host) {
+            return canRequest;
+        }
+
+        @Override
+        public void requestPermissions(Object host, ZyPermissionRequest request) {
+            requests.add(request);
+        }
+
+        ZyPermissionRequest takeOnly() {
+            assertEquals(1, requests.size());
+            return requests.remove(0);
+        }
+    }
+
+    /**
+     * Runs the deferred work on demand against a fake clock.
+     */
+    static final class FakeExecutor implements ZyCallbackExecutor {
+        final List<Runnable> pending = new ArrayList<Runnable>();
+        final List<Long> dueTimes = new ArrayList<Long>();
+        long now = 0;
+
+        @Override
+        public void executeDelayed(Runnable runnable, long delayMillis) {
+            pending.add(runnable);
+            dueTimes.add(now + delayMillis);
+        }
+
+        /**
+         * Run the work due now, including the work it schedules without delay.
+         */
+        void runDue() {
+            boolean ran;
+            do {
+                ran = false;
+                for (int i = 0; i < pending.size(); i++) {
+                    if (dueTimes.get(i) <= now) {
+                        dueTimes.remove(i);
+                        pending.remove(i).run();
+                        ran = true;
+                        break;
+                    }
+                }
+            } while (ran);
+        }
+
+        void advance(long millis) {
+            now += millis;
+            runDue();
+        }
+    }
+
+    static final class RecordingSink implements ZyResultSink {
+        final Set<String> waiting = new HashSet<String>();
+        final List<String> results = new ArrayList<String>();
+        final Object host;
+
+        RecordingSink() {
+            this(null);
+        }
+
+        RecordingSink(Object host) {
+            this.host = host;
+        }
+
+        @Override
+        public void registerPermissions(String[] permissions) {
+            waiting.addAll(Arrays.asList(permissions));
+        }
+
+        @Override
+        public boolean isWaitingFor(String permission) {
+            return waiting.contains(permission);
+        }
+
+        @Override
+        public boolean isWaiting() {
+            return !waiting.isEmpty();
+        }
+
+        @Override
+        public void onRequestPermissionsResult(int requestCode, String[] permissions, int[] grantResults) {
+        }
+
+        @Override
+        public void onResult(String permission, int state) {
+            waiting.remove(permission);
+            results.add(permission + "=" + state);
+        }
+    }
+}